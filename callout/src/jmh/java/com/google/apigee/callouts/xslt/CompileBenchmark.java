@@ -0,0 +1,101 @@
+// Copyright © 2017-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.xslt;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.google.apigee.fakes.FakeExecutionContext;
+import com.google.apigee.fakes.FakeMessage;
+import com.google.apigee.fakes.FakeMessageContext;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares a request that must compile its stylesheet with one that finds the stylesheet already
+ * compiled. Each cold request uses a stylesheet that differs by a comment, so that it misses the
+ * cache of compiled stylesheets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompileBenchmark {
+  @Param({"saxon", "xalan", "saxon-s9api"})
+  public String engine;
+
+  private XsltCallout callout;
+  private FakeMessageContext msgCtxt;
+  private FakeExecutionContext exeCtxt;
+  private String xsl;
+  private long counter;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    xsl = SoapPayloadGenerator.readTestData("Sample-Soap-ReOrderNodes.xsl").trim();
+    msgCtxt = new FakeMessageContext(new FakeMessage());
+    msgCtxt.setVerbose(false);
+    msgCtxt.setVariable("myxsl", xsl);
+    msgCtxt.setVariable("in", SoapPayloadGenerator.readTestData("Sample-Soap.xml"));
+    FakeMessage target = new FakeMessage();
+    target.setVerbose(false);
+    msgCtxt.setVariable("target", target);
+    exeCtxt = new FakeExecutionContext();
+
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("engine", engine);
+    properties.put("input", "in");
+    properties.put("xslt", "{myxsl}");
+    properties.put("output", "target.content");
+    callout = new XsltCallout(properties);
+  }
+
+  private ExecutionResult run() {
+    ExecutionResult result = callout.execute(msgCtxt, exeCtxt);
+    if (result != ExecutionResult.SUCCESS) {
+      throw new IllegalStateException((String) msgCtxt.getVariable("xslt_error"));
+    }
+    return result;
+  }
+
+  @Benchmark
+  public ExecutionResult cached() {
+    msgCtxt.setVariable("myxsl", xsl);
+    return run();
+  }
+
+  @Benchmark
+  public ExecutionResult cold() {
+    // a distinct stylesheet, which must be compiled
+    int end = xsl.lastIndexOf("</xsl:stylesheet>");
+    msgCtxt.setVariable(
+        "myxsl", xsl.substring(0, end) + "<!-- " + (counter++) + " -->" + xsl.substring(end));
+    return run();
+  }
+}
@@ -0,0 +1,115 @@
+// Copyright © 2017-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.xslt;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.google.apigee.fakes.FakeExecutionContext;
+import com.google.apigee.fakes.FakeMessage;
+import com.google.apigee.fakes.FakeMessageContext;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a transform through XsltCallout.execute, with a cached stylesheet, across engines,
+ * kinds of input, and payload sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransformBenchmark {
+  @Param({"saxon", "xalan", "saxon-s9api"})
+  public String engine;
+
+  // string: the input is a context variable holding a string
+  // message: the input is the content of a message
+  @Param({"string", "message"})
+  public String input;
+
+  @Param({"1024", "102400", "1048576", "10485760"})
+  public int size;
+
+  @Param({"Sample-Soap", "Harini"})
+  public String sample;
+
+  private XsltCallout callout;
+  private FakeMessageContext msgCtxt;
+  private FakeMessage inputMessage;
+  private FakeExecutionContext exeCtxt;
+  private byte[] payloadBytes;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    String xsl;
+    SoapPayloadGenerator generator;
+    if (sample.equals("Harini")) {
+      xsl = SoapPayloadGenerator.readTestData("stripNamespaces.xsl");
+      generator = SoapPayloadGenerator.fromTestData("Harini-SOAP-input.xml");
+    } else {
+      xsl = SoapPayloadGenerator.readTestData("Sample-Soap-ReOrderNodes.xsl");
+      generator = SoapPayloadGenerator.fromTestData("Sample-Soap.xml");
+    }
+    String payload = generator.generate(size);
+    payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+
+    inputMessage = new FakeMessage();
+    inputMessage.setVerbose(false);
+    inputMessage.setHeader("content-type", "text/xml; charset=UTF-8");
+    msgCtxt = new FakeMessageContext(new FakeMessage());
+    msgCtxt.setVerbose(false);
+    msgCtxt.setVariable("myxsl", xsl);
+    msgCtxt.setVariable("in", input.equals("message") ? inputMessage : payload);
+    // send the output into a message, which does not copy it into a variable
+    FakeMessage target = new FakeMessage();
+    target.setVerbose(false);
+    msgCtxt.setVariable("target", target);
+    exeCtxt = new FakeExecutionContext();
+
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("engine", engine);
+    properties.put("input", "in");
+    properties.put("xslt", "{myxsl}");
+    properties.put("output", "target.content");
+    callout = new XsltCallout(properties);
+  }
+
+  @Benchmark
+  public ExecutionResult transform() {
+    inputMessage.setContent(new ByteArrayInputStream(payloadBytes));
+    ExecutionResult result = callout.execute(msgCtxt, exeCtxt);
+    if (result != ExecutionResult.SUCCESS) {
+      throw new IllegalStateException((String) msgCtxt.getVariable("xslt_error"));
+    }
+    return result;
+  }
+}
@@ -18,14 +18,13 @@ package com.google.apigee.callouts;
 import com.apigee.flow.message.MessageContext;
 import com.google.apigee.util.CalloutUtil;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class CalloutBase {
-  protected static final String variableReferencePatternString = "(.*?)\\{([^\\{\\} ]+?)\\}(.*?)";
-  protected static final Pattern variableReferencePattern =
-      Pattern.compile(variableReferencePatternString);
   protected Map<String, String> properties; // read-only
+  // compiled templates, keyed by the property value
+  private final Map<String, PropertyTemplate> templates =
+      new ConcurrentHashMap<String, PropertyTemplate>();
 
   public CalloutBase(Map properties) {
     this.properties = CalloutUtil.genericizeMap(properties);
@@ -48,12 +47,6 @@ public abstract class CalloutBase {
     return dest;
   }
 
-  protected boolean getDebug() {
-    String wantDebug = (String) this.properties.get("debug");
-    boolean debug = (wantDebug != null) && Boolean.parseBoolean(wantDebug);
-    return debug;
-  }
-
   protected String normalizeString(String s) {
     s = s.replaceAll("^ +", "");
     s = s.replaceAll("(\r|\n) +", "\n");
@@ -98,23 +91,18 @@ public abstract class CalloutBase {
     return v;
   }
 
+  // Returns the compiled form of a property value. Each distinct value is
+  // compiled once, on first use.
+  protected PropertyTemplate getTemplate(String spec) {
+    return templates.computeIfAbsent(spec, PropertyTemplate::compile);
+  }
+
   // If the value of a property contains a pair of curlies,
   // eg, {apiproxy.name}, then "resolve" the value by de-referencing
   // the context variable whose name appears between the curlies.
-  // If the variable name is not known, then it returns a null.
+  // If the variable name is not known, then it contributes nothing.
+  // If the result is empty, then it returns a null.
   protected String resolvePropertyValue(String spec, MessageContext msgCtxt) {
-    Matcher matcher = variableReferencePattern.matcher(spec);
-    StringBuffer sb = new StringBuffer();
-    while (matcher.find()) {
-      matcher.appendReplacement(sb, "");
-      sb.append(matcher.group(1));
-      Object v = msgCtxt.getVariable(matcher.group(2));
-      if (v != null) {
-        sb.append((String) v);
-      }
-      sb.append(matcher.group(3));
-    }
-    matcher.appendTail(sb);
-    return (sb.length() > 0) ? sb.toString() : null;
+    return getTemplate(spec).resolve(msgCtxt);
   }
 }
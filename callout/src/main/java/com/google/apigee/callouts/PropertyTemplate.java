@@ -0,0 +1,96 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts;
+
+import com.apigee.flow.message.MessageContext;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A property value, compiled into a list of literal text and context variable references. A
+ * reference is a variable name between curly braces, like {request.header.foo}; the name may not
+ * contain braces or spaces. Text that does not form a reference is literal.
+ *
+ * <p>The template is compiled once, and evaluated for each request. A variable that is not set
+ * contributes nothing to the result.
+ */
+public final class PropertyTemplate {
+  // Segments alternate: literals[0], variables[0], literals[1], variables[1], ...
+  // literals[variables.length] is the trailing text. Any literal may be empty.
+  private final String[] literals;
+  private final String[] variables;
+
+  private PropertyTemplate(String[] literals, String[] variables) {
+    this.literals = literals;
+    this.variables = variables;
+  }
+
+  public static PropertyTemplate compile(String spec) {
+    List<String> literals = new ArrayList<String>();
+    List<String> variables = new ArrayList<String>();
+    int n = spec.length();
+    int literalStart = 0;
+    int i = spec.indexOf('{');
+    while (i >= 0) {
+      int k = i + 1;
+      while (k < n && spec.charAt(k) != '{' && spec.charAt(k) != '}' && spec.charAt(k) != ' ') {
+        k++;
+      }
+      if (k < n && spec.charAt(k) == '}' && k > i + 1) {
+        literals.add(spec.substring(literalStart, i));
+        variables.add(spec.substring(i + 1, k));
+        literalStart = k + 1;
+        i = spec.indexOf('{', literalStart);
+      } else {
+        // not a reference; the brace is literal text
+        i = spec.indexOf('{', i + 1);
+      }
+    }
+    literals.add(spec.substring(literalStart));
+    return new PropertyTemplate(
+        literals.toArray(new String[literals.size()]),
+        variables.toArray(new String[variables.size()]));
+  }
+
+  /** Returns true if the template contains no variable references. */
+  public boolean isConstant() {
+    return variables.length == 0;
+  }
+
+  /** Resolves the template. Returns null if the result is empty. */
+  public String resolve(MessageContext msgCtxt) {
+    if (variables.length == 0) {
+      return literals[0].isEmpty() ? null : literals[0];
+    }
+    if (variables.length == 1 && literals[0].isEmpty() && literals[1].isEmpty()) {
+      Object v = msgCtxt.getVariable(variables[0]);
+      if (v == null) {
+        return null;
+      }
+      String s = (v instanceof String) ? (String) v : String.valueOf(v);
+      return s.isEmpty() ? null : s;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < variables.length; i++) {
+      sb.append(literals[i]);
+      Object v = msgCtxt.getVariable(variables[i]);
+      if (v != null) {
+        sb.append(v);
+      }
+    }
+    sb.append(literals[variables.length]);
+    return (sb.length() > 0) ? sb.toString() : null;
+  }
+}
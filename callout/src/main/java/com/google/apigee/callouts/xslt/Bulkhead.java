@@ -0,0 +1,137 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of transforms in flight for one stylesheet, so that a stylesheet whose
+ * transforms slow down cannot take every thread of the message processor. A request that finds the
+ * limit reached waits in a bounded queue, in order of arrival. It is rejected when the queue is
+ * full, or when it has waited for the timeout. Rejection is immediate, so the proxy can fail fast.
+ *
+ * <p>The key is the engine and the stylesheet, as in the metrics, plus the limit, so callouts that
+ * set different limits for one stylesheet do not share a bulkhead. A bulkhead is removed only when
+ * no request holds or waits for a permit, so the limit holds for as long as any request uses it.
+ */
+final class Bulkhead {
+  private static final ConcurrentHashMap<String, Bulkhead> bulkheads =
+      new ConcurrentHashMap<String, Bulkhead>();
+  private static final LongAdder rejections = new LongAdder();
+  private final String key;
+  private final Semaphore permits;
+  private final AtomicInteger waiting = new AtomicInteger();
+  // the requests that hold or wait for a permit; changed only within compute() on the key
+  private int users;
+
+  private Bulkhead(String key, int maxConcurrent) {
+    this.key = key;
+    // fair, so that waiting requests get permits in order of arrival
+    this.permits = new Semaphore(maxConcurrent, true);
+  }
+
+  /**
+   * Takes a permit for a transform of the stylesheet, waiting up to the timeout if none is free.
+   * Call release() on the returned bulkhead when the transform has finished.
+   *
+   * @throws RejectedException if the queue is full, or the wait times out
+   */
+  static Bulkhead acquire(String key, int maxConcurrent, int maxQueue, long timeoutMillis)
+      throws RejectedException {
+    Bulkhead bulkhead =
+        bulkheads.compute(
+            key + "#" + maxConcurrent,
+            (k, existing) -> {
+              Bulkhead b = (existing != null) ? existing : new Bulkhead(k, maxConcurrent);
+              b.users++;
+              return b;
+            });
+    try {
+      bulkhead.enter(maxQueue, timeoutMillis);
+      return bulkhead;
+    } catch (RejectedException re) {
+      bulkhead.leave();
+      throw re;
+    }
+  }
+
+  private void enter(int maxQueue, long timeoutMillis) throws RejectedException {
+    try {
+      // honours the order of the requests already waiting, unlike tryAcquire()
+      if (permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+        return;
+      }
+      if (waiting.incrementAndGet() > maxQueue) {
+        waiting.decrementAndGet();
+        throw reject("the queue is full");
+      }
+      try {
+        if (permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+          return;
+        }
+      } finally {
+        waiting.decrementAndGet();
+      }
+      throw reject("timed out after " + timeoutMillis + "ms in the queue");
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw reject("interrupted in the queue");
+    }
+  }
+
+  void release() {
+    permits.release();
+    leave();
+  }
+
+  // removes the bulkhead once the last request using it has left
+  private void leave() {
+    bulkheads.computeIfPresent(key, (k, b) -> (--b.users == 0) ? null : b);
+  }
+
+  private static RejectedException reject(String reason) {
+    rejections.increment();
+    return new RejectedException("rejected by the bulkhead: " + reason);
+  }
+
+  static long getRejectionCount() {
+    return rejections.sum();
+  }
+
+  /** The number of bulkheads in use. */
+  static int size() {
+    return bulkheads.size();
+  }
+
+  /** The number of requests now waiting, for all stylesheets. */
+  static int getQueueDepth() {
+    int depth = 0;
+    for (Bulkhead bulkhead : bulkheads.values()) {
+      depth += bulkhead.waiting.get();
+    }
+    return depth;
+  }
+
+  /** Thrown when a request is not admitted. */
+  static final class RejectedException extends Exception {
+    RejectedException(String message) {
+      super(message);
+    }
+  }
+}
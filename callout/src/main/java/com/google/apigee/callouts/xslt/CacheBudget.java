@@ -0,0 +1,88 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+/**
+ * The memory budgets of the caches, and the weights of their entries. Each cache is bounded by the
+ * approximate number of bytes its entries hold, rather than by a count of entries, so that a few
+ * very large stylesheets or documents cannot exhaust the heap. The budget of a cache can be set
+ * with a system property, eg
+ *
+ * <pre>
+ *   -Dcom.google.apigee.callouts.xslt.cache.templates.maxBytes=134217728
+ * </pre>
+ *
+ * <p>The weight of a compiled stylesheet is an estimate, derived from the size of its source. The
+ * weights are sizes only, so the budget bounds the memory the cache holds. The cost of a compile
+ * is not modelled: Caffeine picks the entries to evict by frequency and recency of use, and a
+ * weight only sets how much of the budget an entry takes, so no weight could keep an expensive
+ * stylesheet cached. The compile count and time are reported in the metrics instead.
+ */
+final class CacheBudget {
+  private static final String PROPERTY_PREFIX = "com.google.apigee.callouts.xslt.cache.";
+  private static final long MB = 1024 * 1024;
+  static final long DEFAULT_SOURCE_BYTES = 16 * MB;
+  static final long DEFAULT_COMPILED_BYTES = 64 * MB;
+  static final long DEFAULT_DOCUMENT_BYTES = 64 * MB;
+  // compiled stylesheets and parsed trees are larger than their sources
+  private static final int COMPILED_EXPANSION = 4;
+  private static final int DOCUMENT_EXPANSION = 4;
+  // the overhead of an entry, beyond its content
+  private static final int ENTRY_OVERHEAD = 64;
+
+  private CacheBudget() {}
+
+  /** Returns the budget for the named cache, in bytes. */
+  static long maxBytes(String cacheName, long defaultBytes) {
+    String value = System.getProperty(PROPERTY_PREFIX + cacheName + ".maxBytes");
+    if (value != null && !value.trim().equals("")) {
+      try {
+        long bytes = Long.parseLong(value.trim());
+        if (bytes > 0) {
+          return bytes;
+        }
+      } catch (NumberFormatException exc1) {
+        // use the default
+      }
+    }
+    return defaultBytes;
+  }
+
+  /**
+   * The weight of a string. A String holds one byte per character when all of its characters are
+   * Latin-1, and two otherwise; this assumes the worst case.
+   */
+  static int weigh(String key, String value) {
+    return clamp(ENTRY_OVERHEAD + 2L * (key.length() + value.length()));
+  }
+
+  static int weigh(String key, byte[] value) {
+    return clamp(ENTRY_OVERHEAD + 2L * key.length() + value.length);
+  }
+
+  /** The weight of a tree parsed from an XML string of the given number of characters. */
+  static int weighDocument(int chars) {
+    return clamp(ENTRY_OVERHEAD + 2L * chars * DOCUMENT_EXPANSION);
+  }
+
+  /** The weight of a stylesheet compiled from a source of the given size. */
+  static int weighCompiled(long sourceBytes) {
+    return clamp(ENTRY_OVERHEAD + sourceBytes * COMPILED_EXPANSION);
+  }
+
+  private static int clamp(long weight) {
+    return (int) Math.max(1, Math.min(weight, Integer.MAX_VALUE));
+  }
+}
@@ -0,0 +1,70 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A simple circuit breaker. After a number of consecutive failures, the circuit opens, and
+ * requests are refused until the open period has elapsed. Then a single trial request is allowed;
+ * if it succeeds, the circuit closes, and if it fails, the circuit opens again.
+ */
+final class CircuitBreaker {
+  private final int failureThreshold;
+  private final long openMillis;
+  // the time in milliseconds
+  private final LongSupplier clock;
+  private int consecutiveFailures;
+  private long openedAt;
+  private boolean trialInFlight;
+
+  CircuitBreaker(int failureThreshold, long openMillis) {
+    this(failureThreshold, openMillis, System::currentTimeMillis);
+  }
+
+  CircuitBreaker(int failureThreshold, long openMillis, LongSupplier clock) {
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+    this.clock = clock;
+  }
+
+  synchronized boolean allowRequest() {
+    if (consecutiveFailures < failureThreshold) {
+      return true;
+    }
+    if (clock.getAsLong() - openedAt < openMillis || trialInFlight) {
+      return false;
+    }
+    trialInFlight = true; // half-open
+    return true;
+  }
+
+  synchronized void recordSuccess() {
+    consecutiveFailures = 0;
+    trialInFlight = false;
+  }
+
+  synchronized void recordFailure() {
+    consecutiveFailures++;
+    trialInFlight = false;
+    if (consecutiveFailures >= failureThreshold) {
+      openedAt = clock.getAsLong();
+    }
+  }
+
+  synchronized boolean isOpen() {
+    return consecutiveFailures >= failureThreshold;
+  }
+}
@@ -14,51 +14,228 @@
 //
 package com.google.apigee.callouts.xslt;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
 import javax.xml.transform.ErrorListener;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.stream.StreamSource;
+import javax.xml.transform.sax.TransformerHandler;
+import org.xml.sax.InputSource;
 
 public class CustomTransformerFactory {
+  private static final Cache<String, Compiled<Templates>> templatesCache;
+  // The cache key of each stylesheet seen recently, without the engine, by the identity of the
+  // String that holds the stylesheet or its resource name. The file and URL caches return the same
+  // String until the content changes, and a constant xslt property is the same String for every
+  // request.
+  private static final Cache<String, ContentKey> contentKeys =
+      Caffeine.newBuilder().weakKeys().maximumSize(XsltCallout.MAX_CACHE_ENTRIES).build();
+
+  static {
+    // Compiled stylesheets are immutable and thread-safe, so a single
+    // Templates instance can be shared by all concurrent requests.
+    templatesCache =
+        Caffeine.newBuilder()
+            .maximumWeight(
+                CacheBudget.maxBytes("templates", CacheBudget.DEFAULT_COMPILED_BYTES))
+            .weigher((String key, Compiled<Templates> compiled) -> compiled.weight)
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .executor(Runnable::run)
+            .recordStats()
+            .removalListener(
+                (String key, Compiled<Templates> compiled, RemovalCause cause) -> {
+                  if (compiled != null) {
+                    TransformerPool.discard(compiled.value);
+                  }
+                  if (cause.wasEvicted()) {
+                    ModuleURIResolver.forget(key);
+                  }
+                })
+            .build();
+    XsltMetrics.registerCache("templates", templatesCache);
+  }
 
   private CustomTransformerFactory() {}
 
-  /** This creates a Transformer if not already present in the pool. */
+  /**
+   * This creates a Transformer from the compiled stylesheet, compiling the stylesheet only if it is
+   * not already present in the cache.
+   */
   public static Transformer createTransformer(String key) throws Exception {
-    Transformer t = null;
     String[] parts = key.split("-", 2);
     String engine = parts[0];
     String xslt = parts[1];
-    TransformerFactory tf = TransformerFactory.newInstance(engine, null);
-    SimpleErrorListener errorListener = new SimpleErrorListener();
-    // This handles errors that occur when creating the transformer. Eg, XSL malformed.
-    tf.setErrorListener(errorListener);
+    return newTransformer(getTemplates(engine, xslt), engine);
+  }
+
+  /** Creates a new Transformer from the compiled stylesheet, for the given engine. */
+  public static Transformer newTransformer(Templates templates, String engine) throws Exception {
+    Transformer t = templates.newTransformer();
+    // The resolver may be inherited from the factory, which is already wrapped.
+    if (!(t.getURIResolver() instanceof DataURIResolver)) {
+      t.setURIResolver(new DataURIResolver(t.getURIResolver(), engine));
+    }
+    // if (t instanceof net.sf.saxon.jaxp.TransformerImpl) {
+    //     net.sf.saxon.Controller c = t.getUnderlyingController();
+    //     // c.setMessageEmitter(Receiver r);
+    // }
+    return t;
+  }
+
+  /**
+   * Creates a TransformerHandler for the compiled stylesheet, for a stage of a pipeline that
+   * receives its input as SAX events. Unlike a Transformer, a handler cannot be reused, so it is
+   * not pooled.
+   */
+  public static TransformerHandler newTransformerHandler(Templates templates, String engine)
+      throws TransformerConfigurationException {
+    TransformerHandler handler = EngineRegistry.get(engine).newTransformerHandler(templates);
+    Transformer t = handler.getTransformer();
+    if (!(t.getURIResolver() instanceof DataURIResolver)) {
+      t.setURIResolver(new DataURIResolver(t.getURIResolver(), engine));
+    }
+    return handler;
+  }
+
+  /**
+   * Returns the compiled form of the stylesheet. The cache key is the engine plus a digest of the
+   * stylesheet content, so a file, a URL, or an inline string with identical bytes all share a
+   * single compiled entry. A stylesheet that includes or imports other modules is cached per base
+   * URI as well, because its relative references resolve against that base.
+   */
+  public static Templates getTemplates(String engine, String xslt) throws Exception {
+    return getTemplates(engine, xslt, null);
+  }
+
+  /**
+   * Returns the compiled form of the stylesheet, using the given base URI for resolving the
+   * modules it includes or imports. If the base URI is null, it is derived from the stylesheet.
+   */
+  public static Templates getTemplates(String engine, String xslt, String systemId)
+      throws Exception {
+    return getTemplates(engine, xslt, systemId, UrlResourceCache.DEFAULT_REFRESH_SECONDS);
+  }
+
+  /**
+   * As above, refreshing the modules fetched from URLs at the given interval, like the stylesheet
+   * itself.
+   */
+  public static Templates getTemplates(
+      String engine, String xslt, String systemId, long refreshSeconds) throws Exception {
+    return getCompiled(
+        templatesCache,
+        engine,
+        xslt,
+        systemId,
+        refreshSeconds,
+        (xsltSource, k) -> compile(engine, xsltSource, k, refreshSeconds));
+  }
+
+  /**
+   * Returns the compiled stylesheet from the cache, compiling it on a miss. The cache key of a
+   * stylesheet seen recently is found by the identity of its String, so a hit needs neither a read
+   * of the stylesheet nor a digest of it.
+   */
+  static <T> T getCompiled(
+      Cache<String, Compiled<T>> cache,
+      String engine,
+      String xslt,
+      String systemId,
+      long refreshSeconds,
+      BiFunction<XsltSource, String, Compiled<T>> compiler)
+      throws Exception {
+    ContentKey known = contentKeys.getIfPresent(xslt);
+    if (known != null && Objects.equals(known.systemId, systemId)) {
+      String cacheKey = engine + "-" + known.key;
+      ModuleURIResolver.touch(cacheKey, refreshSeconds);
+      Compiled<T> compiled = cache.getIfPresent(cacheKey);
+      if (compiled != null) {
+        return compiled.value;
+      }
+    }
+    XsltSource xsltSource = loadXslt(xslt, systemId, engine, refreshSeconds);
+    String key = contentKey(xsltSource);
+    if (!isValidURL(xslt)) {
+      // a URL may return other content next time; a resource or a string may not
+      contentKeys.put(xslt, new ContentKey(systemId, key));
+    }
+    String cacheKey = engine + "-" + key;
+    ModuleURIResolver.touch(cacheKey, refreshSeconds);
+    try {
+      return cache.get(cacheKey, k -> compiler.apply(xsltSource, k)).value;
+    } catch (CompilationFailure cf) {
+      throw cf.getCause();
+    }
+  }
+
+  // The cache key, without the engine.
+  private static String contentKey(XsltSource xsltSource) {
+    String key = digest(xsltSource.bytes);
+    return (xsltSource.systemId != null && ModuleURIResolver.mayReferenceModules(xsltSource.bytes))
+        ? key + "@" + xsltSource.systemId
+        : key;
+  }
+
+  /** Evicts a compiled stylesheet, so that it will be re-compiled on next use. */
+  static void invalidate(String cacheKey) {
+    templatesCache.invalidate(cacheKey);
+  }
+
+  private static Compiled<Templates> compile(
+      String engine, XsltSource xsltSource, String cacheKey, long refreshSeconds) {
+    ModuleURIResolver.startTracking(cacheKey, refreshSeconds);
+    long start = System.nanoTime();
+    boolean success = false;
+    Source source = null;
+    try {
+      source = xsltSource.toSource();
+      Templates templates = EngineRegistry.get(engine).compile(source);
+      success = true;
+      return new Compiled<Templates>(templates, xsltSource.bytes.length);
+    } catch (EngineRegistry.CompileException ce1) {
+      TransformerConfigurationException tce1 = (TransformerConfigurationException) ce1.getCause();
+      throw new CompilationFailure(
+          new TransformerCreationException(tce1.getMessage(), ce1.getXsltError(), tce1));
+    } catch (TransformerConfigurationException tce1) {
+      throw new CompilationFailure(tce1);
+    } catch (Exception exc1) {
+      throw new CompilationFailure(exc1);
+    } finally {
+      XMLReaderPool.release(source);
+      ModuleURIResolver.stopTracking();
+      XsltMetrics.recordCompile(System.nanoTime() - start, success);
+    }
+  }
+
+  static String digest(byte[] bytes) {
     try {
-      Source xsltSource = convertXsltToSource(xslt);
-      t = tf.newTransformer(xsltSource);
-      t.setURIResolver(new DataURIResolver(t.getURIResolver()));
-      // if (t instanceof net.sf.saxon.jaxp.TransformerImpl) {
-      //     net.sf.saxon.Controller c = t.getUnderlyingController();
-      //     // c.setMessageEmitter(Receiver r);
-      // }
-    } catch (javax.xml.transform.TransformerConfigurationException tce1) {
-      if (errorListener.getXsltError() != null) {
-        throw new TransformerCreationException(
-            tce1.getMessage(), errorListener.getXsltError(), tce1);
-      } else {
-        throw tce1;
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes);
+      StringBuilder sb = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
       }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
     }
-    return t;
   }
 
   private static InputStream getResourceAsStream(String resourceName) throws IOException {
@@ -90,26 +267,99 @@ public class CustomTransformerFactory {
     return true;
   }
 
-  private static Source convertXsltToSource(String xslt) throws IOException {
-    // check for the kind of xslt. URI, filename, or string
-    Source source = null;
+  static byte[] readAllBytes(InputStream in) throws IOException {
+    try (InputStream in2 = in) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in2.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    }
+  }
 
-    if (isValidURL(xslt)) {
-      // It is a URL, therefore instantiate StreamSource directly from URI
-      // varName = prefix + "_xslturl";
-      // msgCtxt.setVariable(varName, xslt);
-      source = new StreamSource(xslt);
+  static XsltSource loadXslt(String xslt, String systemId, String engine, long refreshSeconds)
+      throws IOException {
+    // check for the kind of xslt. URI, filename, or string
+    if (xslt.startsWith("http://") || xslt.startsWith("https://")) {
+      // fetched through the URL cache, with its timeouts, backoff and circuit
+      // breaker; retain the URL as the systemId
+      byte[] bytes =
+          UrlResourceCache.get(xslt, engine, refreshSeconds).getBytes(StandardCharsets.UTF_8);
+      return new XsltSource(bytes, xslt);
+    } else if (isValidURL(xslt)) {
+      // It is some other URL; read it, and retain the URL as the systemId
+      URLConnection connection = new URL(xslt).openConnection();
+      connection.setConnectTimeout(UrlResourceCache.CONNECT_TIMEOUT_MS);
+      connection.setReadTimeout(UrlResourceCache.READ_TIMEOUT_MS);
+      return new XsltSource(readAllBytes(connection.getInputStream()), xslt);
     } else if (xslt.endsWith(".xsl") || xslt.endsWith(".xslt")) {
       // assume this is a stream resource in the JAR
-      source = new StreamSource(getResourceAsStream(xslt));
+      return new XsltSource(
+          readAllBytes(getResourceAsStream(xslt)), ModuleURIResolver.baseUriFor(xslt));
     } else if (xslt.startsWith("<") && xslt.endsWith("stylesheet>")) {
       // assume this is a string containing an XSLT
-      InputStream in = new ByteArrayInputStream(xslt.getBytes(StandardCharsets.UTF_8));
-      source = new StreamSource(in);
-    } else {
-      throw new IllegalStateException("configuration error: invalid xslt");
+      return new XsltSource(xslt.getBytes(StandardCharsets.UTF_8), systemId);
+    }
+    throw new IllegalStateException("configuration error: invalid xslt");
+  }
+
+  /** The raw bytes of a stylesheet, plus the systemId to use when compiling it, if any. */
+  static final class XsltSource {
+    final byte[] bytes;
+    final String systemId;
+
+    XsltSource(byte[] bytes, String systemId) {
+      this.bytes = bytes;
+      this.systemId = systemId;
+    }
+
+    /** Returns a Source that reads the stylesheet with a pooled parser. Release it after use. */
+    Source toSource() throws Exception {
+      InputSource input = new InputSource(new ByteArrayInputStream(bytes));
+      if (systemId != null) {
+        input.setSystemId(systemId);
+      }
+      return XMLReaderPool.newSource(input);
+    }
+  }
+
+  /** The cache key of a stylesheet, without the engine, and the systemId it was compiled with. */
+  private static final class ContentKey {
+    final String systemId;
+    final String key;
+
+    ContentKey(String systemId, String key) {
+      this.systemId = systemId;
+      this.key = key;
+    }
+  }
+
+  /**
+   * A compiled stylesheet, with its weight in the cache. The source is not retained; the cache key
+   * holds only its digest.
+   */
+  static final class Compiled<T> {
+    final T value;
+    final int weight;
+
+    Compiled(T value, long sourceBytes) {
+      this.value = value;
+      this.weight = CacheBudget.weighCompiled(sourceBytes);
+    }
+  }
+
+  /** Carries a checked compile exception out of the cache mapping function. */
+  static final class CompilationFailure extends RuntimeException {
+    CompilationFailure(Exception cause) {
+      super(cause);
+    }
+
+    @Override
+    public synchronized Exception getCause() {
+      return (Exception) super.getCause();
     }
-    return source;
   }
 
   /**
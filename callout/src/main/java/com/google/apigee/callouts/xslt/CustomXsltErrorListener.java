@@ -16,6 +16,8 @@ package com.google.apigee.callouts.xslt;
 
 import com.apigee.flow.message.MessageContext;
 import com.google.apigee.util.CalloutUtil;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import javax.xml.transform.TransformerException;
 
 public class CustomXsltErrorListener implements javax.xml.transform.ErrorListener {
@@ -24,6 +26,9 @@ public class CustomXsltErrorListener implements javax.xml.transform.ErrorListene
   int _warnCount;
   int _errorCount;
   boolean _debug = false;
+  // When not null, the variables to set, held until flush(). A listener shared
+  // by transforms on other threads must not touch the message context.
+  Map<String, String> _deferred;
 
   private static String varName(String s) {
     return _prefix + s;
@@ -42,34 +47,59 @@ public class CustomXsltErrorListener implements javax.xml.transform.ErrorListene
     _debug = debug;
   }
 
-  public void error(TransformerException exception) {
+  public CustomXsltErrorListener(MessageContext msgCtxt, boolean debug, boolean defer) {
+    this(msgCtxt, debug);
+    if (defer) {
+      _deferred = new LinkedHashMap<String, String>();
+    }
+  }
+
+  private void setVariable(String name, String value) {
+    if (_deferred != null) {
+      _deferred.put(name, value);
+    } else {
+      _msgCtxt.setVariable(name, value);
+    }
+  }
+
+  /** Sets the variables held by a deferring listener. Call this on the request thread. */
+  public synchronized void flush() {
+    if (_deferred != null) {
+      for (Map.Entry<String, String> entry : _deferred.entrySet()) {
+        _msgCtxt.setVariable(entry.getKey(), entry.getValue());
+      }
+      _deferred.clear();
+    }
+  }
+
+  public synchronized void error(TransformerException exception) {
     _errorCount++;
     if (_debug) {
       System.out.printf("Error\n");
       System.out.printf(CalloutUtil.getStackTraceAsString(exception));
     }
-    _msgCtxt.setVariable(varName("error_" + _errorCount), "Error:" + exception.toString());
+    setVariable(varName("error_" + _errorCount), "Error:" + exception.toString());
   }
 
-  public void fatalError(TransformerException exception) {
+  public synchronized void fatalError(TransformerException exception) {
     _errorCount++;
     if (_debug) {
       System.out.printf("Fatal\n");
       System.out.printf(CalloutUtil.getStackTraceAsString(exception));
     }
-    _msgCtxt.setVariable(varName("error_" + _errorCount), "Fatal Error:" + exception.toString());
+    setVariable(varName("error_" + _errorCount), "Fatal Error:" + exception.toString());
   }
 
-  public void warning(TransformerException exception) {
+  public synchronized void warning(TransformerException exception) {
     _warnCount++;
     if (_debug) {
       System.out.printf("Warning\n");
       System.out.printf(CalloutUtil.getStackTraceAsString(exception));
     }
-    _msgCtxt.setVariable(varName("warning_" + _warnCount), "Warning:" + exception.toString());
+    setVariable(varName("warning_" + _warnCount), "Warning:" + exception.toString());
   }
 
-  public int getErrorCount() {
+  public synchronized int getErrorCount() {
     return _errorCount;
   }
 }
@@ -15,7 +15,6 @@
 package com.google.apigee.callouts.xslt;
 
 import java.io.ByteArrayInputStream;
-import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import javax.xml.transform.Source;
@@ -25,21 +24,36 @@ import javax.xml.transform.stream.StreamSource;
 
 public class DataURIResolver implements URIResolver {
   private URIResolver _orig;
+  // the engine for which to build cached trees; null to parse on each use
+  private String _engine;
 
   public DataURIResolver(URIResolver orig) {
     _orig = orig;
   }
 
+  public DataURIResolver(URIResolver orig, String engine) {
+    _orig = orig;
+    _engine = engine;
+  }
+
   @Override
   public Source resolve(String href, String base) throws TransformerException {
-    if (base.equals("") && href.startsWith("data:text/xml,")) {
+    // The content is immediate, so the base URI does not matter.
+    if (href.startsWith("data:text/xml,")) {
       // immediate XML string
-        String xmlString = href.substring(14);
-        InputStream in =
-          new ByteArrayInputStream(xmlString.getBytes(StandardCharsets.UTF_8));
-        return new StreamSource(in);
+      String xmlString = href.substring(14);
+      if (_engine != null) {
+        try {
+          return ParsedDocumentCache.asSource(ParsedDocumentCache.get(_engine, xmlString));
+        } catch (Exception e) {
+          throw new TransformerException(e);
+        }
+      }
+      InputStream in = new ByteArrayInputStream(xmlString.getBytes(StandardCharsets.UTF_8));
+      return new StreamSource(in);
     }
 
-    return _orig.resolve(href, base);
+    // null tells the processor to use its default resolution
+    return (_orig != null) ? _orig.resolve(href, base) : null;
   }
 }
@@ -0,0 +1,165 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import java.util.concurrent.ConcurrentHashMap;
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+
+/**
+ * Holds one configured TransformerFactory per engine, keyed by the factory class name. Building a
+ * factory involves a classloader lookup and, for Saxon, a new Configuration and NamePool. Sharing
+ * the factory means all stylesheets compiled for an engine share that Configuration.
+ */
+final class EngineRegistry {
+  private static final String SAXON_FACTORY = "net.sf.saxon.TransformerFactoryImpl";
+  private static final ConcurrentHashMap<String, Engine> engines =
+      new ConcurrentHashMap<String, Engine>();
+
+  private EngineRegistry() {}
+
+  static Engine get(String factoryClassName) {
+    return engines.computeIfAbsent(factoryClassName, Engine::new);
+  }
+
+  static final class Engine {
+    private final TransformerFactory factory;
+    // Saxon can compile with a configured factory on many threads at once. XSLTC keeps the state
+    // of a compile in fields of its factory, and Xalan does not document that its factory is
+    // thread-safe, so for other engines, compiles, identity transformers and transformer handlers
+    // are serialized on this lock. It is null for Saxon.
+    private final Object lock;
+    // This handles errors that occur when compiling a stylesheet. Eg, XSL malformed. The engine
+    // reports them on the thread that compiles, so each thread captures its own.
+    private final ThreadLocal<CustomTransformerFactory.SimpleErrorListener> errorListener =
+        ThreadLocal.withInitial(CustomTransformerFactory.SimpleErrorListener::new);
+
+    Engine(String factoryClassName) {
+      factory = TransformerFactory.newInstance(factoryClassName, null);
+      factory.setErrorListener(new PerThreadErrorListener(errorListener));
+      // resolve included and imported modules, and data: URIs that appear in
+      // document() calls evaluated at compile time
+      factory.setURIResolver(new ModuleURIResolver(factory.getURIResolver(), factoryClassName));
+      lock = SAXON_FACTORY.equals(factoryClassName) ? null : new Object();
+    }
+
+    TransformerFactory getFactory() {
+      return factory;
+    }
+
+    /**
+     * Compiles the stylesheet. For engines other than Saxon, compiles are serialized, because
+     * their factories are not safe for concurrent use.
+     */
+    Templates compile(Source source) throws TransformerConfigurationException {
+      if (lock == null) {
+        return compileNow(source);
+      }
+      synchronized (lock) {
+        return compileNow(source);
+      }
+    }
+
+    private Templates compileNow(Source source) throws TransformerConfigurationException {
+      CustomTransformerFactory.SimpleErrorListener errors = errorListener.get();
+      errors.reset();
+      try {
+        return factory.newTemplates(source);
+      } catch (TransformerConfigurationException tce1) {
+        if (errors.getXsltError() != null) {
+          throw new CompileException(tce1, errors.getXsltError());
+        }
+        throw tce1;
+      } finally {
+        errors.reset();
+      }
+    }
+
+    /** Returns a new identity Transformer. Like compiles, these use the shared factory. */
+    Transformer newIdentityTransformer() throws TransformerConfigurationException {
+      if (lock == null) {
+        return factory.newTransformer();
+      }
+      synchronized (lock) {
+        return factory.newTransformer();
+      }
+    }
+
+    /**
+     * Returns a new TransformerHandler for the compiled stylesheet. Like compiles, these use the
+     * shared factory.
+     */
+    TransformerHandler newTransformerHandler(Templates templates)
+        throws TransformerConfigurationException {
+      if (lock == null) {
+        return newTransformerHandlerNow(templates);
+      }
+      synchronized (lock) {
+        return newTransformerHandlerNow(templates);
+      }
+    }
+
+    private TransformerHandler newTransformerHandlerNow(Templates templates)
+        throws TransformerConfigurationException {
+      if (!factory.getFeature(SAXTransformerFactory.FEATURE)) {
+        throw new TransformerConfigurationException(
+            "configuration error: the engine does not support pipelines");
+      }
+      return ((SAXTransformerFactory) factory).newTransformerHandler(templates);
+    }
+  }
+
+  /** Passes each error to the listener of the thread that reports it. */
+  private static final class PerThreadErrorListener implements ErrorListener {
+    private final ThreadLocal<CustomTransformerFactory.SimpleErrorListener> listener;
+
+    PerThreadErrorListener(ThreadLocal<CustomTransformerFactory.SimpleErrorListener> listener) {
+      this.listener = listener;
+    }
+
+    public void error(TransformerException exception) {
+      listener.get().error(exception);
+    }
+
+    public void fatalError(TransformerException exception) {
+      listener.get().fatalError(exception);
+    }
+
+    public void warning(TransformerException exception) {
+      listener.get().warning(exception);
+    }
+  }
+
+  /** A compile failure that also carries the detail captured by the error listener. */
+  static final class CompileException extends TransformerConfigurationException {
+    private final String xsltError;
+
+    CompileException(TransformerConfigurationException inner, String xsltError) {
+      super(inner.getMessage(), inner);
+      this.xsltError = xsltError;
+    }
+
+    String getXsltError() {
+      return xsltError;
+    }
+  }
+}
@@ -0,0 +1,432 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import com.google.apigee.callouts.PropertyTemplate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The parts of the callout configuration that do not depend on the request. The plan is built
+ * once, when the callout is instantiated, from the immutable properties. A value that refers to a
+ * context variable is kept as a template, to be resolved for each request; a value that does not is
+ * resolved here, once.
+ *
+ * <p>The plan holds one or more stages. A callout with the xslt property has a single stage. A
+ * callout with the properties xslt_1, xslt_2, and so on, has a pipeline of stages, run in order of
+ * their numbers, each passing its result to the next as SAX events. A callout with the properties
+ * fanout_1_xslt, fanout_2_xslt, and so on, has a stage per stylesheet too, but each stage is a
+ * branch that transforms the same input tree, parsed once, into its own output variable, named by
+ * fanout_N_output.
+ */
+final class ExecutionPlan {
+  static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = 1000;
+  private static final Pattern stagePattern = Pattern.compile("^xslt_([0-9]+)$");
+  private static final Pattern stageParamPattern =
+      Pattern.compile("^(param|docparam)_([0-9]+)_(.+)$");
+  private static final Pattern branchPattern = Pattern.compile("^fanout_([0-9]+)_xslt$");
+  private static final Pattern branchParamPattern =
+      Pattern.compile("^fanout_([0-9]+)_(param|docparam)_(.+)$");
+  private final String engine;
+  private final IllegalStateException engineError;
+  private final List<Stage> stages;
+  private final IllegalStateException stagesError;
+  private final boolean fanout;
+  private final int fanoutParallelism;
+  private final String inputVariable;
+  private final boolean jsonInput;
+  private final boolean jsonOutput;
+  private final IllegalStateException formatError;
+  private final String outputVariable;
+  private final boolean debug;
+  private final boolean stats;
+  private final int poolMaxIdle;
+  private final long urlRefreshSeconds;
+  private final long maxTimeMillis;
+  private final long maxOutputBytes;
+  private final long maxInputNodes;
+  private final int maxConcurrent;
+  private final int maxQueue;
+  private final long queueTimeoutMillis;
+  private final IllegalStateException numberError;
+
+  ExecutionPlan(Map<String, String> properties) {
+    String engineProp = properties.get("engine");
+    if (engineProp == null || engineProp.equals("")) {
+      engineProp = XsltCallout.DEFAULT_ENGINE;
+    }
+    String mapped = null;
+    IllegalStateException error = null;
+    if (!isTemplate(engineProp)) {
+      try {
+        mapped = XsltCallout.mapEngine(engineProp);
+      } catch (IllegalStateException exc1) {
+        // reported when the callout executes
+        error = exc1;
+      }
+    }
+    this.engine = mapped;
+    this.engineError = error;
+
+    String input = properties.get("input");
+    this.inputVariable = (input == null || input.equals("")) ? "message" : input;
+
+    String inputFormat = getFormat(properties, "input-format");
+    String outputFormat = getFormat(properties, "output-format");
+    this.jsonInput = inputFormat.equals("json");
+    this.jsonOutput = outputFormat.equals("json");
+    this.formatError =
+        !isFormat(inputFormat)
+            ? new IllegalStateException(
+                "configuration error: unknown input-format: " + inputFormat)
+            : !isFormat(outputFormat)
+                ? new IllegalStateException(
+                    "configuration error: unknown output-format: " + outputFormat)
+                : null;
+
+    String output = properties.get("output-variable");
+    if (output == null || output.trim().equals("")) {
+      output = properties.get("output");
+    }
+    if (output == null || output.trim().equals("")) {
+      this.outputVariable = "message.content";
+    } else {
+      this.outputVariable = isTemplate(output) ? null : output.trim();
+    }
+
+    String wantDebug = properties.get("debug");
+    this.debug = (wantDebug != null) && Boolean.parseBoolean(wantDebug);
+
+    String wantStats = properties.get("stats");
+    this.stats = (wantStats != null) && Boolean.parseBoolean(wantStats.trim());
+
+    // a value that is not a number is reported when the callout executes
+    List<String> malformed = new ArrayList<String>();
+    this.poolMaxIdle =
+        toInt(getNumber(properties, "pool-max-idle", TransformerPool.DEFAULT_MAX_IDLE, malformed));
+    this.urlRefreshSeconds =
+        getNumber(
+            properties, "url-refresh-seconds", UrlResourceCache.DEFAULT_REFRESH_SECONDS, malformed);
+
+    this.maxTimeMillis = getNumber(properties, ResourceGovernor.MAX_TIME, 0, malformed);
+    this.maxOutputBytes = getNumber(properties, ResourceGovernor.MAX_OUTPUT, 0, malformed);
+    this.maxInputNodes = getNumber(properties, ResourceGovernor.MAX_INPUT_NODES, 0, malformed);
+
+    this.maxConcurrent = toInt(getNumber(properties, "max-concurrent", 0, malformed));
+    this.maxQueue =
+        Math.max(0, toInt(getNumber(properties, "max-queue", maxConcurrent, malformed)));
+    this.queueTimeoutMillis =
+        Math.max(
+            0,
+            getNumber(properties, "queue-timeout-millis", DEFAULT_QUEUE_TIMEOUT_MILLIS, malformed));
+
+    this.fanoutParallelism =
+        Math.max(1, toInt(getNumber(properties, "fanout-parallelism", 1, malformed)));
+    this.numberError =
+        malformed.isEmpty()
+            ? null
+            : new IllegalStateException("configuration error: invalid " + malformed.get(0));
+
+    List<Param> list = new ArrayList<Param>();
+    // the xslt properties of a pipeline, and their own params, by stage number
+    Map<Integer, String> stageRefs = new TreeMap<Integer, String>();
+    Map<Integer, List<Param>> stageParams = new TreeMap<Integer, List<Param>>();
+    // likewise for the branches of a fanout
+    Map<Integer, String> branchRefs = new TreeMap<Integer, String>();
+    Map<Integer, List<Param>> branchParams = new TreeMap<Integer, List<Param>>();
+    for (Map.Entry<String, String> entry : properties.entrySet()) {
+      String key = entry.getKey();
+      Matcher m = stagePattern.matcher(key);
+      if (m.matches()) {
+        stageRefs.put(Integer.valueOf(m.group(1)), key);
+        continue;
+      }
+      m = stageParamPattern.matcher(key);
+      if (m.matches()) {
+        stageParams
+            .computeIfAbsent(Integer.valueOf(m.group(2)), n -> new ArrayList<Param>())
+            .add(newParam(m.group(3), m.group(1).equals("docparam"), entry.getValue()));
+        continue;
+      }
+      m = branchPattern.matcher(key);
+      if (m.matches()) {
+        branchRefs.put(Integer.valueOf(m.group(1)), key);
+        continue;
+      }
+      m = branchParamPattern.matcher(key);
+      if (m.matches()) {
+        branchParams
+            .computeIfAbsent(Integer.valueOf(m.group(1)), n -> new ArrayList<Param>())
+            .add(newParam(m.group(3), m.group(2).equals("docparam"), entry.getValue()));
+        continue;
+      }
+      String[] parts = key.split("_");
+      // sanity check - is this a param?
+      if (parts.length == 2 && (parts[0].equals("param") || parts[0].equals("docparam"))) {
+        list.add(newParam(parts[1], parts[0].equals("docparam"), entry.getValue()));
+      }
+    }
+    List<Param> params = Collections.unmodifiableList(list);
+
+    List<Stage> stageList = new ArrayList<Stage>();
+    IllegalStateException error2 = null;
+    String xslt = properties.get("xslt");
+    boolean hasXslt = xslt != null && !xslt.trim().equals("");
+    this.fanout = !branchRefs.isEmpty();
+    if (fanout) {
+      if (hasXslt || !stageRefs.isEmpty()) {
+        error2 =
+            new IllegalStateException(
+                "configuration error: specify xslt, xslt_1, or fanout_1_xslt, not more than one");
+      }
+      for (Map.Entry<Integer, String> entry : branchRefs.entrySet()) {
+        String name = entry.getValue();
+        stageList.add(
+            new Stage(
+                name,
+                properties.get(name),
+                mergeParams(params, branchParams.get(entry.getKey())),
+                "fanout_" + entry.getKey() + "_output"));
+      }
+    } else if (stageRefs.isEmpty()) {
+      stageList.add(new Stage("xslt", xslt, params));
+    } else {
+      if (hasXslt) {
+        error2 = new IllegalStateException("configuration error: specify xslt or xslt_1, not both");
+      }
+      for (Map.Entry<Integer, String> entry : stageRefs.entrySet()) {
+        String name = entry.getValue();
+        stageList.add(
+            new Stage(
+                name, properties.get(name), mergeParams(params, stageParams.get(entry.getKey()))));
+      }
+    }
+    this.stages = Collections.unmodifiableList(stageList);
+    this.stagesError = error2;
+  }
+
+  // The params for a stage override the params for all stages, by name.
+  private static List<Param> mergeParams(List<Param> params, List<Param> own) {
+    if (own == null) {
+      return params;
+    }
+    Map<String, Param> merged = new LinkedHashMap<String, Param>();
+    for (Param param : params) {
+      merged.put(param.name, param);
+    }
+    for (Param param : own) {
+      merged.put(param.name, param);
+    }
+    return Collections.unmodifiableList(new ArrayList<Param>(merged.values()));
+  }
+
+  /**
+   * The value of a numeric property, or the default if it is not set. A value that is not a number
+   * is added to malformed, and the default is used in its place.
+   */
+  private static long getNumber(
+      Map<String, String> properties, String name, long defaultValue, List<String> malformed) {
+    String value = properties.get(name);
+    if (value == null || value.trim().equals("")) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException exc1) {
+      malformed.add(name + ": " + value.trim());
+      return defaultValue;
+    }
+  }
+
+  private static int toInt(long value) {
+    return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+  }
+
+  private static String getFormat(Map<String, String> properties, String name) {
+    String format = properties.get(name);
+    return (format == null || format.trim().equals("")) ? "xml" : format.trim().toLowerCase();
+  }
+
+  private static boolean isFormat(String format) {
+    return format.equals("xml") || format.equals("json");
+  }
+
+  private static Param newParam(String name, boolean document, String value) {
+    return new Param(name, document, value, PropertyTemplate.compile(value));
+  }
+
+  private static boolean isTemplate(String value) {
+    return !PropertyTemplate.compile(value).isConstant();
+  }
+
+  /** The engine, or null if the engine property refers to a context variable. */
+  String getEngine() {
+    if (engineError != null) {
+      throw engineError;
+    }
+    return engine;
+  }
+
+  /**
+   * The stages of the transform, in the order they run. There is at least one. Call this before
+   * the other getters, because it also reports a numeric property that is not a number.
+   */
+  List<Stage> getStages() {
+    if (stagesError != null) {
+      throw stagesError;
+    }
+    if (numberError != null) {
+      throw numberError;
+    }
+    return stages;
+  }
+
+  /**
+   * Whether the stages are the branches of a fanout, each transforming the same input into its own
+   * output, rather than a pipeline.
+   */
+  boolean isFanout() {
+    return fanout;
+  }
+
+  /** The most branches of a fanout to run at once, for one request. 1 runs them in turn. */
+  int getFanoutParallelism() {
+    return fanoutParallelism;
+  }
+
+  String getInputVariable() {
+    return inputVariable;
+  }
+
+  /** Whether the input is JSON, to be read in the vocabulary of json-to-xml(). */
+  boolean isJsonInput() {
+    if (formatError != null) {
+      throw formatError;
+    }
+    return jsonInput;
+  }
+
+  /** Whether to write the result as JSON, rather than serializing it as XML. */
+  boolean isJsonOutput() {
+    if (formatError != null) {
+      throw formatError;
+    }
+    return jsonOutput;
+  }
+
+  /** The output variable, or null if it must be resolved for each request. */
+  String getOutputVariable() {
+    return outputVariable;
+  }
+
+  boolean isDebug() {
+    return debug;
+  }
+
+  /** Whether to set a snapshot of the metrics into context variables, after each transform. */
+  boolean isStatsEnabled() {
+    return stats;
+  }
+
+  int getPoolMaxIdle() {
+    return poolMaxIdle;
+  }
+
+  long getUrlRefreshSeconds() {
+    return urlRefreshSeconds;
+  }
+
+  /**
+   * Returns a governor that enforces the resource limits on the transform of one request, or null
+   * if no limits are set.
+   */
+  ResourceGovernor newGovernor() {
+    if (maxTimeMillis <= 0 && maxOutputBytes <= 0 && maxInputNodes <= 0) {
+      return null;
+    }
+    return new ResourceGovernor(maxTimeMillis, maxOutputBytes, maxInputNodes);
+  }
+
+  /** The most transforms of one stylesheet to run at once, or 0 for no limit. */
+  int getMaxConcurrent() {
+    return maxConcurrent;
+  }
+
+  /** The most requests to hold, when the transforms of a stylesheet are at the limit. */
+  int getMaxQueue() {
+    return maxQueue;
+  }
+
+  long getQueueTimeoutMillis() {
+    return queueTimeoutMillis;
+  }
+
+  /** One stylesheet in the transform, with the parameters to pass to it. */
+  static final class Stage {
+    // the name of the property that specifies the stylesheet
+    final String property;
+    // the stylesheet reference, or null if it must be resolved for each request
+    final String xsltRef;
+    final List<Param> params;
+    // for a branch of a fanout, the name of the property that specifies its output; else null
+    final String outputProperty;
+
+    Stage(String property, String xslt, List<Param> params) {
+      this(property, xslt, params, null);
+    }
+
+    Stage(String property, String xslt, List<Param> params, String outputProperty) {
+      this.property = property;
+      this.xsltRef =
+          (xslt == null || xslt.trim().equals("") || isTemplate(xslt)) ? null : xslt.trim();
+      this.params = params;
+      this.outputProperty = outputProperty;
+    }
+  }
+
+  /** A parameter to pass to the stylesheet. */
+  static final class Param {
+    final String name;
+    final boolean document;
+    final PropertyTemplate template;
+    // the value, when it does not depend on the request; else null
+    final String constant;
+
+    Param(String name, boolean document, String value, PropertyTemplate template) {
+      this.name = name;
+      this.document = document;
+      this.template = template;
+      this.constant = template.isConstant() ? resolveConstant(value) : null;
+    }
+
+    private static String resolveConstant(String value) {
+      // A URL gets refreshed, so it is resolved on each request, from the cache.
+      if (value.equals("") || value.startsWith("http://") || value.startsWith("https://")) {
+        return null;
+      }
+      try {
+        return XsltCallout.maybeResolveUrlReference(value, null, 0);
+      } catch (java.lang.Exception exc1) {
+        return null;
+      }
+    }
+  }
+}
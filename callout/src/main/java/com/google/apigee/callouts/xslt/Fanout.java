@@ -0,0 +1,155 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMResult;
+
+/**
+ * Runs the branches of a fanout, which apply several stylesheets to one input. The input is parsed
+ * once, into a tree that each branch reads: a Saxon tree for the Saxon engines, and a DOM for the
+ * others. A Saxon tree is immutable, and each branch reads its own copy of a DOM, so the branches
+ * of a request can run at the same time. They share a bounded set of threads. When all of those
+ * threads are busy, a branch runs on the request thread, so a request never waits for a thread. The
+ * number of threads can be set with a system property, eg
+ *
+ * <pre>
+ *   -Dcom.google.apigee.callouts.xslt.fanout.threads=8
+ * </pre>
+ *
+ * <p>A branch must not touch the message context, which belongs to the request thread.
+ */
+final class Fanout {
+  private static final String THREADS_PROPERTY = "com.google.apigee.callouts.xslt.fanout.threads";
+
+  private Fanout() {}
+
+  /** One transform of the fanout. */
+  interface Branch {
+    void transform() throws Exception;
+  }
+
+  // initialized on first use, so that a callout without a parallel fanout starts no threads
+  private static final class ExecutorHolder {
+    static final ExecutorService executor = newExecutor();
+  }
+
+  private static ExecutorService newExecutor() {
+    int threads = Runtime.getRuntime().availableProcessors();
+    String value = System.getProperty(THREADS_PROPERTY);
+    if (value != null && !value.trim().equals("")) {
+      try {
+        threads = Math.max(1, Integer.parseInt(value.trim()));
+      } catch (NumberFormatException exc1) {
+        // use the default
+      }
+    }
+    AtomicInteger count = new AtomicInteger();
+    // With no queue, a branch that finds no idle thread is rejected, and the
+    // caller runs it.
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            60,
+            TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(),
+            r -> {
+              Thread t = new Thread(r, "xslt-fanout-" + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Parses the input into a tree for the engine: an XdmNode for the Saxon engines, and a DOM
+   * Document otherwise. ParsedDocumentCache.asSource() returns a Source for the tree.
+   */
+  static Object parse(String engine, Source source) throws Exception {
+    if (ParsedDocumentCache.isSaxon(engine)) {
+      return SaxonS9api.getProcessor().newDocumentBuilder().build(source);
+    }
+    DOMResult result = new DOMResult();
+    EngineRegistry.get(engine).newIdentityTransformer().transform(source, result);
+    return result.getNode();
+  }
+
+  /**
+   * Runs the branches, up to the given number at once, and returns when all have finished. The
+   * request thread runs branches too. After a branch fails, no more branches start, and the
+   * failure of the first failed branch, in order, is thrown.
+   */
+  static void run(List<Branch> branches, int parallelism) throws Exception {
+    int n = branches.size();
+    Exception[] failures = new Exception[n];
+    AtomicInteger next = new AtomicInteger();
+    AtomicBoolean failed = new AtomicBoolean();
+    Runnable worker =
+        () -> {
+          int i;
+          while (!failed.get() && (i = next.getAndIncrement()) < n) {
+            try {
+              branches.get(i).transform();
+            } catch (Exception e) {
+              failures[i] = e;
+              failed.set(true);
+            }
+          }
+        };
+    List<Future<?>> helpers = new ArrayList<Future<?>>();
+    for (int k = 1; k < Math.min(parallelism, n); k++) {
+      try {
+        helpers.add(ExecutorHolder.executor.submit(worker));
+      } catch (SecurityException | RejectedExecutionException exc1) {
+        // The runtime may not permit threads. This thread runs the rest.
+        break;
+      }
+    }
+    worker.run();
+    for (Future<?> helper : helpers) {
+      try {
+        helper.get();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw ie;
+      } catch (ExecutionException ee) {
+        Throwable cause = ee.getCause();
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+      }
+    }
+    for (Exception failure : failures) {
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+}
@@ -0,0 +1,370 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Receives the result of a transform as SAX events, and writes it as JSON, without producing XML
+ * text. There are two conventions.
+ *
+ * <p>If the root element is in the namespace http://www.w3.org/2005/xpath-functions, the result is
+ * read in the vocabulary of the XSLT 3.0 xml-to-json() function: map, array, string, number,
+ * boolean and null elements, with key attributes for the members of a map. This is the inverse of
+ * the json input format, and it is written as the events arrive.
+ *
+ * <p>Otherwise, each element becomes a member named by its qualified name, and the root element
+ * becomes the single member of the top-level object. An element with neither attributes nor child
+ * elements becomes a string, or null if it is empty. Other elements become objects, in which each
+ * attribute is a member named with a leading @, text is a member named #text, and child elements
+ * that share a name are collected into an array. Namespace declarations are dropped. The name of
+ * the root element is written when it starts. Because a later sibling may join the array of an
+ * earlier one, the members of the root are held until it ends, and then written in one pass. Each
+ * completed element is held as its JSON text and its completed children, which are not copied into
+ * their parent. With a governor, the size of what is held is checked against the output limit as
+ * each element ends, so a result that is too large fails before all of it is held.
+ *
+ * <p>JSON has a single top-level value, so in both conventions, a result with more than one
+ * top-level element is an error.
+ */
+final class JsonContentHandler extends DefaultHandler {
+  private final Writer writer;
+  private final ResourceGovernor governor;
+  private final StringBuilder text = new StringBuilder();
+  private boolean started;
+  private boolean ended;
+  private boolean functions;
+
+  // for the xml-to-json vocabulary: for each open map or array, whether it is
+  // a map, and whether it has a member yet
+  private boolean[] maps = new boolean[32];
+  private boolean[] nonEmpty = new boolean[32];
+  private int depth;
+  private String leaf;
+
+  // for the generic convention: the open elements, and the number of
+  // characters held for them, all of which will be written
+  private final List<Element> open = new ArrayList<Element>();
+  private long held;
+
+  JsonContentHandler(Writer writer) {
+    this(writer, null);
+  }
+
+  /** The governor, if not null, limits the size of the output that is held. */
+  JsonContentHandler(Writer writer, ResourceGovernor governor) {
+    this.writer = writer;
+    this.governor = governor;
+  }
+
+  @Override
+  public void startElement(String uri, String localName, String qName, Attributes attributes)
+      throws SAXException {
+    if (ended) {
+      throw new SAXException("json output: the result has more than one top-level element");
+    }
+    if (!started) {
+      started = true;
+      functions = JsonXMLReader.FN_NS.equals(uri);
+    }
+    if (functions) {
+      startFunctionElement(uri, localName, attributes);
+      return;
+    }
+    try {
+      Element element = new Element(qName.equals("") ? localName : qName);
+      for (int i = 0; i < attributes.getLength(); i++) {
+        String name = attributes.getQName(i);
+        if (name.equals("")) {
+          name = attributes.getLocalName(i);
+        }
+        if (!name.equals("xmlns") && !name.startsWith("xmlns:")) {
+          if (element.attributes.length() > 0) {
+            element.attributes.append(',');
+          }
+          writeString(element.attributes, "@" + name);
+          element.attributes.append(':');
+          writeString(element.attributes, attributes.getValue(i));
+        }
+      }
+      if (open.isEmpty()) {
+        writer.write('{');
+        writeString(writer, element.name);
+        writer.write(':');
+      } else {
+        open.get(open.size() - 1).text.append(text);
+      }
+      text.setLength(0);
+      open.add(element);
+    } catch (IOException ioe) {
+      throw new SAXException(ioe);
+    }
+  }
+
+  @Override
+  public void endElement(String uri, String localName, String qName) throws SAXException {
+    if (functions) {
+      endFunctionElement(localName);
+      return;
+    }
+    Element element = open.remove(open.size() - 1);
+    element.text.append(text);
+    text.setLength(0);
+    try {
+      if (open.isEmpty()) {
+        writeValue(writer, element.complete());
+        writer.write('}');
+        ended = true;
+      } else {
+        Object value = element.complete();
+        Group group = open.get(open.size() - 1).groups.get(element.name);
+        if (group == null) {
+          group = new Group();
+          open.get(open.size() - 1).groups.put(element.name, group);
+          held += element.name.length() + 4;
+        }
+        group.values.add(value);
+        held += (value instanceof String) ? ((String) value).length() : element.size();
+        if (governor != null) {
+          governor.checkHeldOutput(held);
+        }
+      }
+    } catch (IOException ioe) {
+      throw new SAXException(ioe);
+    }
+  }
+
+  @Override
+  public void characters(char[] ch, int start, int length) {
+    if (functions ? leaf != null : !open.isEmpty()) {
+      text.append(ch, start, length);
+    }
+  }
+
+  @Override
+  public void endDocument() throws SAXException {
+    try {
+      if (!started) {
+        writer.write("null");
+      }
+      writer.flush();
+    } catch (IOException ioe) {
+      throw new SAXException(ioe);
+    }
+  }
+
+  private void startFunctionElement(String uri, String name, Attributes attributes)
+      throws SAXException {
+    if (!JsonXMLReader.FN_NS.equals(uri) || leaf != null) {
+      throw new SAXException("xml-to-json: unexpected element " + name);
+    }
+    try {
+      if (depth > 0) {
+        if (nonEmpty[depth - 1]) {
+          writer.write(',');
+        }
+        nonEmpty[depth - 1] = true;
+        if (maps[depth - 1]) {
+          String key = attributes.getValue("", "key");
+          if (key == null) {
+            throw new SAXException("xml-to-json: a member of a map has no key");
+          }
+          writeString(writer, key);
+          writer.write(':');
+        }
+      }
+      if (name.equals("map") || name.equals("array")) {
+        if (depth == maps.length) {
+          maps = Arrays.copyOf(maps, depth * 2);
+          nonEmpty = Arrays.copyOf(nonEmpty, depth * 2);
+        }
+        maps[depth] = name.equals("map");
+        nonEmpty[depth] = false;
+        depth++;
+        writer.write(name.equals("map") ? '{' : '[');
+      } else if (name.equals("string")
+          || name.equals("number")
+          || name.equals("boolean")
+          || name.equals("null")) {
+        leaf = name;
+        text.setLength(0);
+      } else {
+        throw new SAXException("xml-to-json: unexpected element " + name);
+      }
+    } catch (IOException ioe) {
+      throw new SAXException(ioe);
+    }
+  }
+
+  private void endFunctionElement(String name) throws SAXException {
+    try {
+      if (leaf == null) {
+        depth--;
+        writer.write(maps[depth] ? '}' : ']');
+        ended = (depth == 0);
+        return;
+      }
+      String value = text.toString();
+      text.setLength(0);
+      leaf = null;
+      if (name.equals("string")) {
+        writeString(writer, value);
+      } else if (name.equals("number")) {
+        value = value.trim();
+        if (!JsonXMLReader.numberPattern.matcher(value).matches()) {
+          throw new SAXException("xml-to-json: invalid number " + value);
+        }
+        writer.write(value);
+      } else if (name.equals("boolean")) {
+        value = value.trim();
+        writer.write((value.equals("true") || value.equals("1")) ? "true" : "false");
+      } else {
+        writer.write("null");
+      }
+      ended = (depth == 0);
+    } catch (IOException ioe) {
+      throw new SAXException(ioe);
+    }
+  }
+
+  // Writes a completed element: a String of JSON text, or an Element with members.
+  private static void writeValue(Writer out, Object value) throws IOException {
+    if (value instanceof String) {
+      out.write((String) value);
+      return;
+    }
+    Element element = (Element) value;
+    out.write('{');
+    out.append(element.attributes);
+    boolean first = (element.attributes.length() == 0);
+    String mixed = element.text.toString();
+    if (!mixed.equals("")) {
+      first = writeSeparator(out, first);
+      writeString(out, "#text");
+      out.write(':');
+      writeString(out, mixed);
+    }
+    // the groups of children that share a name, in order of first appearance
+    for (Map.Entry<String, Group> entry : element.groups.entrySet()) {
+      first = writeSeparator(out, first);
+      writeString(out, entry.getKey());
+      out.write(':');
+      List<Object> values = entry.getValue().values;
+      if (values.size() > 1) {
+        out.write('[');
+      }
+      for (int i = 0; i < values.size(); i++) {
+        if (i > 0) {
+          out.write(',');
+        }
+        writeValue(out, values.get(i));
+      }
+      if (values.size() > 1) {
+        out.write(']');
+      }
+    }
+    out.write('}');
+  }
+
+  private static boolean writeSeparator(Writer out, boolean first) throws IOException {
+    if (!first) {
+      out.write(',');
+    }
+    return false;
+  }
+
+  private static void writeString(Appendable out, String s) throws IOException {
+    out.append('"');
+    int length = s.length();
+    int start = 0;
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      String escape = null;
+      if (c == '"') {
+        escape = "\\\"";
+      } else if (c == '\\') {
+        escape = "\\\\";
+      } else if (c == '\n') {
+        escape = "\\n";
+      } else if (c == '\r') {
+        escape = "\\r";
+      } else if (c == '\t') {
+        escape = "\\t";
+      } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+        escape = String.format("\\u%04x", (int) c);
+      }
+      if (escape != null) {
+        out.append(s, start, i).append(escape);
+        start = i + 1;
+      }
+    }
+    out.append(s, start, length).append('"');
+  }
+
+  /**
+   * An element, for the generic convention: its attributes as JSON text, its own text, and its
+   * completed children.
+   */
+  private static final class Element {
+    final String name;
+    final StringBuilder attributes = new StringBuilder();
+    final StringBuilder text = new StringBuilder();
+    final Map<String, Group> groups = new LinkedHashMap<String, Group>();
+
+    Element(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Returns the completed element: the JSON text of a string or null, for an element with
+     * neither attributes nor children, else the element itself, with its mixed text trimmed.
+     */
+    Object complete() throws IOException {
+      if (attributes.length() == 0 && groups.isEmpty()) {
+        if (text.length() == 0) {
+          return "null";
+        }
+        StringBuilder sb = new StringBuilder(text.length() + 2);
+        writeString(sb, text.toString());
+        return sb.toString();
+      }
+      String mixed = text.toString().trim();
+      text.setLength(0);
+      text.append(mixed);
+      text.trimToSize();
+      attributes.trimToSize();
+      return this;
+    }
+
+    /** The number of characters of its own, not counting its children, that will be written. */
+    long size() {
+      return attributes.length() + ((text.length() > 0) ? text.length() + 10 : 0) + 2;
+    }
+  }
+
+  /** The completed children of an element that share a name. */
+  private static final class Group {
+    final List<Object> values = new ArrayList<Object>(1);
+  }
+}
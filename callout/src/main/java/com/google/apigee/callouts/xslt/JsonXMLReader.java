@@ -0,0 +1,497 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Parses JSON into SAX events, in the XML vocabulary of the XSLT 3.0 json-to-xml() function. A
+ * JSON object becomes a map element, an array an array element, and the scalars become string,
+ * number, boolean and null elements. Within a map, each member carries its name in the key
+ * attribute. All elements are in the namespace http://www.w3.org/2005/xpath-functions. For
+ * example,
+ *
+ * <pre>
+ *   {"id": 7, "tags": ["a"]}
+ * </pre>
+ *
+ * <p>becomes
+ *
+ * <pre>
+ *   &lt;map xmlns="http://www.w3.org/2005/xpath-functions"&gt;
+ *     &lt;number key="id"&gt;7&lt;/number&gt;
+ *     &lt;array key="tags"&gt;&lt;string&gt;a&lt;/string&gt;&lt;/array&gt;
+ *   &lt;/map&gt;
+ * </pre>
+ *
+ * <p>As with json-to-xml() in its default mode, characters that are not allowed in XML are
+ * replaced with U+FFFD, and numbers keep the form they have in the JSON. Duplicate keys are all
+ * retained. The parse streams, so the JSON is never held in memory as a whole, and nesting is
+ * tracked without recursion.
+ */
+final class JsonXMLReader implements XMLReader {
+  static final String FN_NS = "http://www.w3.org/2005/xpath-functions";
+  private static final String FEATURE_NAMESPACES = "http://xml.org/sax/features/namespaces";
+  private static final String FEATURE_NAMESPACE_PREFIXES =
+      "http://xml.org/sax/features/namespace-prefixes";
+  // the syntax of a JSON number
+  static final Pattern numberPattern =
+      Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+  private final Map<String, Boolean> features = new HashMap<String, Boolean>();
+  private final Map<String, Object> properties = new HashMap<String, Object>();
+  private ContentHandler contentHandler;
+  private ErrorHandler errorHandler;
+  private DTDHandler dtdHandler;
+  private EntityResolver entityResolver;
+
+  JsonXMLReader() {
+    features.put(FEATURE_NAMESPACES, Boolean.TRUE);
+    features.put(FEATURE_NAMESPACE_PREFIXES, Boolean.FALSE);
+  }
+
+  // There is no DTD, no entities, and no validation, so any feature or
+  // property a caller sets is accepted and has no effect.
+  public boolean getFeature(String name) {
+    Boolean value = features.get(name);
+    return (value != null) && value.booleanValue();
+  }
+
+  public void setFeature(String name, boolean value) {
+    features.put(name, value);
+  }
+
+  public Object getProperty(String name) {
+    return properties.get(name);
+  }
+
+  public void setProperty(String name, Object value) {
+    properties.put(name, value);
+  }
+
+  public void setEntityResolver(EntityResolver resolver) {
+    this.entityResolver = resolver;
+  }
+
+  public EntityResolver getEntityResolver() {
+    return entityResolver;
+  }
+
+  public void setDTDHandler(DTDHandler handler) {
+    this.dtdHandler = handler;
+  }
+
+  public DTDHandler getDTDHandler() {
+    return dtdHandler;
+  }
+
+  public void setContentHandler(ContentHandler handler) {
+    this.contentHandler = handler;
+  }
+
+  public ContentHandler getContentHandler() {
+    return contentHandler;
+  }
+
+  public void setErrorHandler(ErrorHandler handler) {
+    this.errorHandler = handler;
+  }
+
+  public ErrorHandler getErrorHandler() {
+    return errorHandler;
+  }
+
+  public void parse(String systemId) throws IOException, SAXException {
+    parse(new InputSource(systemId));
+  }
+
+  public void parse(InputSource input) throws IOException, SAXException {
+    if (contentHandler == null) {
+      throw new SAXException("no ContentHandler");
+    }
+    Reader reader = input.getCharacterStream();
+    if (reader == null) {
+      InputStream in = input.getByteStream();
+      if (in == null) {
+        if (input.getSystemId() == null) {
+          throw new SAXException("no input");
+        }
+        in = new URL(input.getSystemId()).openStream();
+      }
+      reader =
+          (input.getEncoding() != null)
+              ? new InputStreamReader(in, input.getEncoding())
+              : new InputStreamReader(in, StandardCharsets.UTF_8);
+    }
+    Parser parser = new Parser(reader, contentHandler, input.getSystemId());
+    try {
+      parser.parse();
+    } catch (SAXParseException spe) {
+      if (errorHandler != null) {
+        errorHandler.fatalError(spe);
+      }
+      throw spe;
+    }
+  }
+
+  /** The state of one parse. */
+  private static final class Parser implements Locator {
+    private static final int NONE = -2;
+    private final Reader reader;
+    private final ContentHandler handler;
+    private final String systemId;
+    private final char[] buffer = new char[8192];
+    private int pos;
+    private int limit;
+    private int pushback = NONE;
+    private int line = 1;
+    private int column = 0;
+    private final StringBuilder sb = new StringBuilder();
+    private char[] chars = new char[256];
+    private final AttributesImpl keyAttributes = new AttributesImpl();
+    private final Attributes noAttributes = new AttributesImpl();
+    // for each open container, true if it is a map, false if an array
+    private boolean[] maps = new boolean[32];
+    private int depth;
+
+    Parser(Reader reader, ContentHandler handler, String systemId) {
+      this.reader = reader;
+      this.handler = handler;
+      this.systemId = systemId;
+    }
+
+    public String getPublicId() {
+      return null;
+    }
+
+    public String getSystemId() {
+      return systemId;
+    }
+
+    public int getLineNumber() {
+      return line;
+    }
+
+    public int getColumnNumber() {
+      return column;
+    }
+
+    void parse() throws IOException, SAXException {
+      handler.setDocumentLocator(this);
+      handler.startDocument();
+      handler.startPrefixMapping("", FN_NS);
+      int c = read();
+      if (c == '\uFEFF') {
+        c = read(); // a byte order mark
+      }
+      unread(c);
+      String key = null;
+      values:
+      while (true) {
+        // expecting a value, with the key of the member if within a map
+        c = skipWhitespace();
+        switch (c) {
+          case '{':
+            startElement("map", key);
+            push(true);
+            c = skipWhitespace();
+            if (c != '}') {
+              key = readKey(c);
+              continue values;
+            }
+            depth--;
+            endElement("map");
+            break;
+          case '[':
+            startElement("array", key);
+            push(false);
+            c = skipWhitespace();
+            if (c != ']') {
+              unread(c);
+              key = null;
+              continue values;
+            }
+            depth--;
+            endElement("array");
+            break;
+          case '"':
+            readString();
+            leaf("string", key);
+            break;
+          case 't':
+            expect("rue");
+            literal("boolean", key, "true");
+            break;
+          case 'f':
+            expect("alse");
+            literal("boolean", key, "false");
+            break;
+          case 'n':
+            expect("ull");
+            startElement("null", key);
+            endElement("null");
+            break;
+          default:
+            if (c == '-' || (c >= '0' && c <= '9')) {
+              readNumber(c);
+              leaf("number", key);
+              break;
+            }
+            throw error((c == -1) ? "unexpected end of JSON" : "unexpected character", c);
+        }
+
+        // after a value: a separator, or the end of one or more containers
+        while (true) {
+          c = skipWhitespace();
+          if (depth == 0) {
+            if (c != -1) {
+              throw error("unexpected content after the JSON value", c);
+            }
+            break values;
+          }
+          boolean map = maps[depth - 1];
+          if (c == ',') {
+            key = map ? readKey(skipWhitespace()) : null;
+            continue values;
+          }
+          if (c != (map ? '}' : ']')) {
+            throw error(map ? "expected , or }" : "expected , or ]", c);
+          }
+          depth--;
+          endElement(map ? "map" : "array");
+        }
+      }
+      handler.endPrefixMapping("");
+      handler.endDocument();
+    }
+
+    private void push(boolean map) {
+      if (depth == maps.length) {
+        maps = Arrays.copyOf(maps, depth * 2);
+      }
+      maps[depth++] = map;
+    }
+
+    private String readKey(int c) throws IOException, SAXException {
+      if (c != '"') {
+        throw error("expected a key", c);
+      }
+      readString();
+      c = skipWhitespace();
+      if (c != ':') {
+        throw error("expected :", c);
+      }
+      return sb.toString();
+    }
+
+    private void startElement(String name, String key) throws SAXException {
+      Attributes attributes = noAttributes;
+      if (key != null) {
+        keyAttributes.clear();
+        keyAttributes.addAttribute("", "key", "key", "CDATA", key);
+        attributes = keyAttributes;
+      }
+      handler.startElement(FN_NS, name, name, attributes);
+    }
+
+    private void endElement(String name) throws SAXException {
+      handler.endElement(FN_NS, name, name);
+    }
+
+    // an element with the text accumulated in sb
+    private void leaf(String name, String key) throws SAXException {
+      startElement(name, key);
+      int length = sb.length();
+      if (length > 0) {
+        if (chars.length < length) {
+          chars = new char[Math.max(length, chars.length * 2)];
+        }
+        sb.getChars(0, length, chars, 0);
+        handler.characters(chars, 0, length);
+      }
+      endElement(name);
+    }
+
+    private void literal(String name, String key, String text) throws SAXException {
+      sb.setLength(0);
+      sb.append(text);
+      leaf(name, key);
+    }
+
+    private void expect(String rest) throws IOException, SAXException {
+      for (int i = 0; i < rest.length(); i++) {
+        int c = read();
+        if (c != rest.charAt(i)) {
+          throw error("unexpected character", c);
+        }
+      }
+    }
+
+    private void readNumber(int c) throws IOException, SAXException {
+      sb.setLength(0);
+      while (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9')) {
+        sb.append((char) c);
+        c = read();
+      }
+      unread(c);
+      if (!numberPattern.matcher(sb).matches()) {
+        throw error("invalid number " + sb, -1);
+      }
+    }
+
+    // Reads the rest of a string, after the opening quote, into sb.
+    private void readString() throws IOException, SAXException {
+      sb.setLength(0);
+      while (true) {
+        int c = read();
+        if (c == '"') {
+          break;
+        }
+        if (c == -1) {
+          throw error("unterminated string", c);
+        }
+        if (c < 0x20) {
+          throw error("control character in string", c);
+        }
+        if (c == '\\') {
+          c = read();
+          switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+              break;
+            case 'b':
+              c = '\b';
+              break;
+            case 'f':
+              c = '\f';
+              break;
+            case 'n':
+              c = '\n';
+              break;
+            case 'r':
+              c = '\r';
+              break;
+            case 't':
+              c = '\t';
+              break;
+            case 'u':
+              c = readHex();
+              break;
+            default:
+              throw error("invalid escape", c);
+          }
+        }
+        sb.append((char) c);
+      }
+      replaceInvalidCharacters();
+    }
+
+    private int readHex() throws IOException, SAXException {
+      int value = 0;
+      for (int i = 0; i < 4; i++) {
+        int c = read();
+        int digit = Character.digit(c, 16);
+        if (c == -1 || digit < 0) {
+          throw error("invalid \\u escape", c);
+        }
+        value = (value << 4) | digit;
+      }
+      return value;
+    }
+
+    // Replaces characters that are not allowed in XML 1.0, including unpaired
+    // surrogates, with U+FFFD.
+    private void replaceInvalidCharacters() {
+      int length = sb.length();
+      for (int i = 0; i < length; i++) {
+        char c = sb.charAt(i);
+        if (Character.isHighSurrogate(c)
+            && i + 1 < length
+            && Character.isLowSurrogate(sb.charAt(i + 1))) {
+          i++;
+        } else if ((c < 0x20 && c != '\t' && c != '\n' && c != '\r')
+            || Character.isSurrogate(c)
+            || c == '\uFFFE'
+            || c == '\uFFFF') {
+          sb.setCharAt(i, '\uFFFD');
+        }
+      }
+    }
+
+    private int skipWhitespace() throws IOException {
+      int c = read();
+      while (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+        c = read();
+      }
+      return c;
+    }
+
+    private int read() throws IOException {
+      int c;
+      if (pushback != NONE) {
+        c = pushback;
+        pushback = NONE;
+        return c;
+      }
+      if (pos == limit) {
+        limit = reader.read(buffer, 0, buffer.length);
+        pos = 0;
+        if (limit <= 0) {
+          limit = 0;
+          return -1;
+        }
+      }
+      c = buffer[pos++];
+      if (c == '\n') {
+        line++;
+        column = 0;
+      } else {
+        column++;
+      }
+      return c;
+    }
+
+    private void unread(int c) {
+      pushback = c;
+    }
+
+    private SAXParseException error(String message, int c) {
+      if (c >= 0) {
+        message += " '" + (char) c + "'";
+      }
+      return new SAXParseException("invalid JSON: " + message, this);
+    }
+  }
+}
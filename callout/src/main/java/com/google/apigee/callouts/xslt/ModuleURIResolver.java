@@ -0,0 +1,285 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Resolves the modules named in xsl:include and xsl:import, from the resources in the JAR or from
+ * http(s) URLs. Module sources are cached, and the modules used by each compiled stylesheet are
+ * recorded, so that when a module changes, only the stylesheets that depend on it get evicted and
+ * re-compiled.
+ *
+ * <p>Resources in the JAR are identified with a hierarchical URI, like resource:/common.xsl, so
+ * that relative references in one module resolve against the location of that module.
+ */
+final class ModuleURIResolver extends DataURIResolver {
+  static final String RESOURCE_SCHEME = "resource";
+  private static final String RESOURCE_BASE = RESOURCE_SCHEME + ":/";
+  private static final LoadingCache<String, byte[]> resourceCache;
+  // the modules used by each compiled stylesheet, keyed by the cache key of the stylesheet
+  private static final Map<String, Set<String>> modulesByKey =
+      new ConcurrentHashMap<String, Set<String>>();
+  // the compile on this thread, if any
+  private static final ThreadLocal<Tracking> tracking = new ThreadLocal<Tracking>();
+  // the compiles in progress on all threads, which are not yet in modulesByKey
+  private static final Set<Tracking> compiling = ConcurrentHashMap.newKeySet();
+
+  static {
+    resourceCache =
+        Caffeine.newBuilder()
+            .maximumWeight(CacheBudget.maxBytes("modules", CacheBudget.DEFAULT_SOURCE_BYTES))
+            .weigher((String path, byte[] bytes) -> CacheBudget.weigh(path, bytes))
+            .recordStats()
+            .build(path -> readResource(path));
+    XsltMetrics.registerCache("modules", resourceCache);
+  }
+
+  ModuleURIResolver(URIResolver orig, String engine) {
+    super(orig, engine);
+  }
+
+  /**
+   * Returns the base URI for a stylesheet reference, as used in the xslt property. Relative
+   * references within the stylesheet resolve against this URI. An inline stylesheet has no base
+   * URI; its relative references resolve against the root of the resources.
+   */
+  static String baseUriFor(String ref) {
+    if (ref == null) {
+      return null;
+    }
+    if (ref.startsWith("file://")) {
+      return RESOURCE_BASE + stripSlashes(ref.substring(7));
+    }
+    if (ref.startsWith("http://") || ref.startsWith("https://")) {
+      return ref;
+    }
+    if (ref.endsWith(".xsl") || ref.endsWith(".xslt")) {
+      return RESOURCE_BASE + stripSlashes(ref);
+    }
+    return null;
+  }
+
+  private static String stripSlashes(String path) {
+    int i = 0;
+    while (i < path.length() && path.charAt(i) == '/') {
+      i++;
+    }
+    return path.substring(i);
+  }
+
+  @Override
+  public Source resolve(String href, String base) throws TransformerException {
+    if (href == null || href.equals("") || href.startsWith("data:")) {
+      return super.resolve(href, base);
+    }
+    String uri = absolutize(href, base);
+    if (uri == null) {
+      return super.resolve(href, base);
+    }
+    if (uri.startsWith(RESOURCE_BASE)) {
+      byte[] bytes;
+      try {
+        bytes = resourceCache.get(uri.substring(RESOURCE_BASE.length() - 1));
+      } catch (RuntimeException e) {
+        throw new TransformerException("cannot resolve " + href + ": " + e.getMessage(), e);
+      }
+      record(uri);
+      StreamSource source = new StreamSource(new ByteArrayInputStream(bytes));
+      source.setSystemId(uri);
+      return source;
+    }
+    // http(s) modules come from the shared URL cache, but only while compiling;
+    // document() calls at transform time keep the default behavior.
+    Tracking compile = tracking.get();
+    if (compile != null && (uri.startsWith("http://") || uri.startsWith("https://"))) {
+      // Record the module before reading it. A change that is installed after the
+      // read then finds this compile, and evicts what it produces.
+      record(uri);
+      String content;
+      try {
+        content = UrlResourceCache.get(uri, null, compile.refreshSeconds);
+      } catch (IllegalStateException e) {
+        throw new TransformerException(e.getMessage(), e);
+      }
+      StreamSource source = new StreamSource(new StringReader(content));
+      source.setSystemId(uri);
+      return source;
+    }
+    return super.resolve(href, base);
+  }
+
+  private static String absolutize(String href, String base) {
+    if (href.startsWith("file://")) {
+      // the file:// convention of the xslt property refers to a resource in the JAR
+      return RESOURCE_BASE + stripSlashes(href.substring(7));
+    }
+    try {
+      URI hrefUri = new URI(href);
+      if (hrefUri.isAbsolute()) {
+        return hrefUri.toString();
+      }
+      if (base == null || base.equals("")) {
+        return RESOURCE_BASE + stripSlashes(href);
+      }
+      return new URI(base).resolve(hrefUri).toString();
+    } catch (URISyntaxException e) {
+      return null;
+    }
+  }
+
+  private static byte[] readResource(String path) throws IOException {
+    // modules live under /resources, like the stylesheets themselves
+    InputStream in = ModuleURIResolver.class.getResourceAsStream("/resources" + path);
+    if (in == null) {
+      in = ModuleURIResolver.class.getResourceAsStream(path);
+    }
+    if (in == null) {
+      throw new IOException("resource \"" + path + "\" not found");
+    }
+    return CustomTransformerFactory.readAllBytes(in);
+  }
+
+  private static void record(String uri) {
+    Tracking compile = tracking.get();
+    if (compile != null) {
+      compile.modules.add(uri);
+    }
+  }
+
+  /**
+   * Begins recording the modules resolved on this thread, for the compile of the stylesheet with
+   * the given cache key. Modules fetched from URLs refresh at the given interval, the same as the
+   * stylesheet that uses them.
+   */
+  static void startTracking(String cacheKey, long refreshSeconds) {
+    Tracking compile = new Tracking(cacheKey, refreshSeconds);
+    tracking.set(compile);
+    compiling.add(compile);
+  }
+
+  /** Stops recording, and registers the modules as dependencies of the compiled stylesheet. */
+  static void stopTracking() {
+    Tracking compile = tracking.get();
+    tracking.remove();
+    if (compile != null) {
+      if (!compile.modules.isEmpty()) {
+        modulesByKey.put(compile.cacheKey, Collections.unmodifiableSet(compile.modules));
+      }
+      compiling.remove(compile);
+    }
+  }
+
+  /** Called when a compiled stylesheet leaves its cache. */
+  static void forget(String cacheKey) {
+    modulesByKey.remove(cacheKey);
+  }
+
+  /**
+   * Checks the URL modules of a cached stylesheet for staleness. The check itself is a cache
+   * lookup; any refresh happens in the background, and a changed module evicts its dependents.
+   */
+  static void touch(String cacheKey, long refreshSeconds) {
+    Set<String> modules = modulesByKey.get(cacheKey);
+    if (modules == null) {
+      return;
+    }
+    for (String uri : modules) {
+      if (!uri.startsWith(RESOURCE_BASE)) {
+        try {
+          UrlResourceCache.get(uri, null, refreshSeconds);
+        } catch (IllegalStateException e) {
+          // keep the compiled stylesheet
+        }
+      }
+    }
+  }
+
+  /**
+   * Evicts the compiled stylesheets that depend on the module, so they get re-compiled. Call this
+   * only after the new content of the module is in the cache. A compile in progress may have read
+   * the old content; the eviction waits for that compile to finish, and then discards its result.
+   */
+  static void moduleChanged(String uri) {
+    for (Tracking compile : compiling) {
+      if (compile.modules.contains(uri)) {
+        invalidate(compile.cacheKey);
+      }
+    }
+    for (Map.Entry<String, Set<String>> entry : modulesByKey.entrySet()) {
+      if (entry.getValue().contains(uri)) {
+        String cacheKey = entry.getKey();
+        modulesByKey.remove(cacheKey);
+        invalidate(cacheKey);
+      }
+    }
+  }
+
+  private static void invalidate(String cacheKey) {
+    if (cacheKey.startsWith(SaxonS9api.ENGINE + "-")) {
+      SaxonS9api.invalidate(cacheKey);
+    } else {
+      CustomTransformerFactory.invalidate(cacheKey);
+    }
+  }
+
+  /**
+   * Returns true if the stylesheet may include or import other modules. A stylesheet that does not
+   * can be cached by content alone, regardless of where it came from.
+   */
+  static boolean mayReferenceModules(byte[] bytes) {
+    return indexOf(bytes, "include") >= 0 || indexOf(bytes, "import") >= 0;
+  }
+
+  private static int indexOf(byte[] bytes, String ascii) {
+    outer:
+    for (int i = 0; i <= bytes.length - ascii.length(); i++) {
+      for (int j = 0; j < ascii.length(); j++) {
+        if (bytes[i + j] != ascii.charAt(j)) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  private static final class Tracking {
+    // read by moduleChanged() on other threads
+    final Set<String> modules = ConcurrentHashMap.newKeySet();
+    final String cacheKey;
+    final long refreshSeconds;
+
+    Tracking(String cacheKey, long refreshSeconds) {
+      this.cacheKey = cacheKey;
+      this.refreshSeconds = refreshSeconds;
+    }
+  }
+}
@@ -0,0 +1,185 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import net.sf.saxon.s9api.XdmNode;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Caches parsed XML documents, keyed by their content, so that a document passed to a stylesheet
+ * repeatedly, via a data: URI or a document parameter, is parsed only once. For Saxon, the cached
+ * tree is an immutable Saxon tree built with the Configuration shared by all Saxon transforms. For
+ * other engines, the cached tree is a DOM. Reading a DOM can update the node list caches within it,
+ * so a DOM is not safe for concurrent readers; each use gets its own copy of the cached DOM, which
+ * is still cheaper than a parse. Both are parsed with the protections of XMLReaderPool: secure
+ * processing, and no external DTDs or entities.
+ */
+final class ParsedDocumentCache {
+  private static final String SAXON_FACTORY = "net.sf.saxon.TransformerFactoryImpl";
+  private static final Cache<TreeKey, Object> cache;
+  // The digest of each document seen recently, by the identity of the String that holds it. A
+  // constant docparam_ and the file cache return the same String for every request.
+  private static final Cache<String, String> digests =
+      Caffeine.newBuilder().weakKeys().maximumSize(XsltCallout.MAX_CACHE_ENTRIES).build();
+  private static final DocumentBuilderFactory documentBuilderFactory = newDocumentBuilderFactory();
+
+  static {
+    cache =
+        Caffeine.newBuilder()
+            .maximumWeight(
+                CacheBudget.maxBytes("documents", CacheBudget.DEFAULT_DOCUMENT_BYTES))
+            .weigher((TreeKey key, Object tree) -> CacheBudget.weighDocument(key.length))
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
+    XsltMetrics.registerCache("documents", cache);
+  }
+
+  private ParsedDocumentCache() {}
+
+  private static DocumentBuilderFactory newDocumentBuilderFactory() {
+    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+    dbf.setNamespaceAware(true);
+    dbf.setValidating(false);
+    dbf.setXIncludeAware(false);
+    setFeature(dbf, XMLConstants.FEATURE_SECURE_PROCESSING, true);
+    setFeature(dbf, "http://xml.org/sax/features/external-general-entities", false);
+    setFeature(dbf, "http://xml.org/sax/features/external-parameter-entities", false);
+    setFeature(dbf, "http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+    // expand the DOM fully, so that copying it does not change it
+    setFeature(dbf, "http://apache.org/xml/features/dom/defer-node-expansion", false);
+    return dbf;
+  }
+
+  private static void setFeature(DocumentBuilderFactory dbf, String name, boolean value) {
+    try {
+      dbf.setFeature(name, value);
+    } catch (javax.xml.parsers.ParserConfigurationException exc1) {
+      // not supported by this parser; the entity resolver still blocks fetches
+    }
+  }
+
+  static boolean isSaxon(String engine) {
+    return SAXON_FACTORY.equals(engine) || SaxonS9api.ENGINE.equals(engine);
+  }
+
+  /**
+   * Returns the parsed form of the XML string, for the engine. The result is an XdmNode for Saxon
+   * engines, and a DOM Document otherwise.
+   */
+  static Object get(String engine, String xml) throws Exception {
+    boolean saxon = isSaxon(engine);
+    String digest = digests.get(xml, k -> digest(k));
+    // Both Saxon engines share one Configuration, so they can share trees.
+    TreeKey key = new TreeKey(saxon ? SAXON_FACTORY : engine, digest, xml.length());
+    try {
+      return cache.get(key, k -> build(saxon, xml));
+    } catch (CustomTransformerFactory.CompilationFailure cf) {
+      throw cf.getCause();
+    }
+  }
+
+  private static Object build(boolean saxon, String xml) {
+    try {
+      if (saxon) {
+        Source source = XMLReaderPool.newSource(new InputSource(new StringReader(xml)));
+        try {
+          return SaxonS9api.getProcessor().newDocumentBuilder().build(source);
+        } finally {
+          XMLReaderPool.release(source);
+        }
+      }
+      DocumentBuilder builder;
+      // A DocumentBuilderFactory is not guaranteed to be thread-safe.
+      synchronized (documentBuilderFactory) {
+        builder = documentBuilderFactory.newDocumentBuilder();
+      }
+      builder.setEntityResolver(XMLReaderPool.noExternalEntities);
+      return builder.parse(new InputSource(new StringReader(xml)));
+    } catch (java.lang.Exception exc1) {
+      throw new CustomTransformerFactory.CompilationFailure(exc1);
+    }
+  }
+
+  private static String digest(String xml) {
+    return CustomTransformerFactory.digest(xml.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Returns the tree as a Source, for use by a URIResolver. A DOM is copied, so that no other
+   * thread reads the same DOM.
+   */
+  static Source asSource(Object tree) {
+    if (tree instanceof XdmNode) {
+      return ((XdmNode) tree).getUnderlyingNode();
+    }
+    return new DOMSource(copy((Document) tree));
+  }
+
+  /** Returns the tree as a value for Transformer.setParameter(). A DOM is copied, as above. */
+  static Object asParameter(Object tree) {
+    if (tree instanceof XdmNode) {
+      return ((XdmNode) tree).getUnderlyingNode();
+    }
+    return copy((Document) tree);
+  }
+
+  // The copy walks the tree by its child and sibling links, and does not use
+  // the node list caches, so copies can be made on several threads at once.
+  private static Document copy(Document document) {
+    return (Document) document.cloneNode(true);
+  }
+
+  /**
+   * Identifies a document by a digest of its content and its length, so that the key does not hold
+   * the content itself.
+   */
+  static final class TreeKey {
+    private final String family;
+    private final String digest;
+    private final int length;
+
+    TreeKey(String family, String digest, int length) {
+      this.family = family;
+      this.digest = digest;
+      this.length = length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof TreeKey)) {
+        return false;
+      }
+      TreeKey other = (TreeKey) o;
+      return length == other.length && family.equals(other.family) && digest.equals(other.digest);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * family.hashCode() + digest.hashCode();
+    }
+  }
+}
@@ -0,0 +1,152 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Compiles stylesheets in the background, and runs a synthetic transform with each one, so that
+ * the first request to use a stylesheet does not pay for classloading, compilation, and a cold JIT.
+ * A request that arrives while a stylesheet is still compiling waits on the in-flight compile in
+ * the compiled-stylesheet cache, rather than starting another one.
+ */
+final class Prewarmer {
+  static final String MANIFEST = "/resources/xslt-prewarm.txt";
+  private static final String warmupInput = "<warmup/>";
+  private static final Set<String> submitted = ConcurrentHashMap.newKeySet();
+  private static volatile ExecutorService executor;
+
+  private Prewarmer() {}
+
+  /**
+   * Reads the list of stylesheet references from the manifest in the jar, if present. Each line
+   * holds one reference, in any form accepted by the xslt property. Blank lines and lines that
+   * begin with # are ignored.
+   */
+  static List<String> readManifest() {
+    List<String> refs = new ArrayList<String>();
+    InputStream in = Prewarmer.class.getResourceAsStream(MANIFEST);
+    if (in != null) {
+      try (BufferedReader reader =
+          new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+        refs = parseList(reader);
+      } catch (java.lang.Exception exc1) {
+        // gulp - prewarming is best-effort
+      }
+    }
+    return refs;
+  }
+
+  /** Parses a comma- or newline-separated list of stylesheet references. */
+  static List<String> parseList(String spec) {
+    try {
+      return parseList(new BufferedReader(new StringReader(spec.replace(',', '\n'))));
+    } catch (java.io.IOException exc1) {
+      return new ArrayList<String>();
+    }
+  }
+
+  private static List<String> parseList(BufferedReader reader) throws java.io.IOException {
+    List<String> refs = new ArrayList<String>();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      line = line.trim();
+      if (!line.equals("") && !line.startsWith("#")) {
+        refs.add(line);
+      }
+    }
+    return refs;
+  }
+
+  /** Schedules each stylesheet to be compiled and warmed for the engine, once per process. */
+  static void prewarm(String engine, List<String> refs) {
+    for (String ref : refs) {
+      if (submitted.add(engine + "-" + ref)) {
+        try {
+          getExecutor().submit(() -> warm(engine, ref));
+        } catch (SecurityException | java.util.concurrent.RejectedExecutionException exc1) {
+          // The runtime may not permit background threads. Stylesheets will be
+          // compiled on first use instead.
+          return;
+        }
+      }
+    }
+  }
+
+  private static ExecutorService getExecutor() {
+    if (executor == null) {
+      synchronized (Prewarmer.class) {
+        if (executor == null) {
+          executor =
+              Executors.newSingleThreadExecutor(
+                  r -> {
+                    Thread t = new Thread(r, "xslt-prewarm");
+                    t.setDaemon(true);
+                    return t;
+                  });
+        }
+      }
+    }
+    return executor;
+  }
+
+  private static void warm(String engine, String ref) {
+    try {
+      String xslt =
+          XsltCallout.maybeResolveUrlReference(
+              ref.trim(), engine, UrlResourceCache.DEFAULT_REFRESH_SECONDS);
+      if (engine.equals(SaxonS9api.ENGINE)) {
+        SaxonS9api.warmup(
+            SaxonS9api.getExecutable(xslt, ModuleURIResolver.baseUriFor(ref.trim())), warmupInput);
+        return;
+      }
+      Templates templates =
+          CustomTransformerFactory.getTemplates(
+              engine, xslt, ModuleURIResolver.baseUriFor(ref.trim()));
+      Transformer transformer = TransformerPool.borrow(templates, engine);
+      transformer.setErrorListener(new TransformerPool.DiscardingErrorListener());
+      transformer.transform(
+          new StreamSource(new StringReader(warmupInput)), new StreamResult(nullOutputStream()));
+      TransformerPool.release(templates, engine, transformer, TransformerPool.DEFAULT_MAX_IDLE);
+    } catch (java.lang.Exception exc1) {
+      // gulp - the stylesheet may not accept the synthetic input. It is still compiled.
+    }
+  }
+
+  static OutputStream nullOutputStream() {
+    return new OutputStream() {
+      @Override
+      public void write(int b) {}
+
+      @Override
+      public void write(byte[] b, int off, int len) {}
+    };
+  }
+}
@@ -0,0 +1,236 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import java.io.FilterOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Bounds the resources used by the transform of one request: the elapsed time, the size of the
+ * output, and the number of nodes in the input. The engines offer no way to stop a transform from
+ * outside, so the limits are checked cooperatively. The input passes through a SAX filter and the
+ * output through counting streams, and each input event or write checks the limits. Once a limit
+ * is exceeded, every later check fails too, so the transform stops even if the engine recovers
+ * from the first failure. A transform that neither reads nor writes is checked when it ends, so
+ * the time limit is best-effort: a stylesheet that computes without writing, over input already
+ * parsed, runs on until its next write or its end. Neither Xalan nor Saxon HE offers a hook that
+ * runs as each instruction executes, without compiling the stylesheet for tracing.
+ */
+final class ResourceGovernor {
+  static final String MAX_TIME = "max-time-millis";
+  static final String MAX_OUTPUT = "max-output-bytes";
+  static final String MAX_INPUT_NODES = "max-input-nodes";
+  static final String STACK = "stack";
+  private static final String PREFIX = "resource limit exceeded: ";
+  private final long maxMillis;
+  private final long maxOutputBytes;
+  private final long maxInputNodes;
+  private long start;
+  private final AtomicLong outputBytes = new AtomicLong();
+  // counted only by the thread that parses the input
+  private long inputNodes;
+  private final AtomicReference<String> violation = new AtomicReference<String>();
+
+  /** A limit of zero or less means no limit. */
+  ResourceGovernor(long maxMillis, long maxOutputBytes, long maxInputNodes) {
+    this.maxMillis = maxMillis;
+    this.maxOutputBytes = maxOutputBytes;
+    this.maxInputNodes = maxInputNodes;
+    this.start = System.nanoTime();
+  }
+
+  /** Starts the clock, before the transform begins. */
+  void start() {
+    start = System.nanoTime();
+  }
+
+  /**
+   * The description of the limit that was exceeded, for the xslt_error variable, or null if none
+   * was.
+   */
+  String getViolation() {
+    return violation.get();
+  }
+
+  /**
+   * Records a stack overflow, which ends a transform whether or not there are limits, and returns
+   * the description of the violation.
+   */
+  static String stackOverflow(ResourceGovernor governor) {
+    String message = PREFIX + STACK;
+    if (governor != null && !governor.violation.compareAndSet(null, message)) {
+      // another limit was exceeded first
+      return governor.violation.get();
+    }
+    XsltMetrics.recordLimitExceeded(STACK);
+    return message;
+  }
+
+  private LimitExceededException exceeded(String limit, long value) {
+    if (violation.compareAndSet(null, PREFIX + limit + "=" + value)) {
+      XsltMetrics.recordLimitExceeded(limit);
+    }
+    return new LimitExceededException(violation.get());
+  }
+
+  /** Fails if a limit has been exceeded, or if the time has run out. */
+  void check() throws LimitExceededException {
+    String v = violation.get();
+    if (v != null) {
+      throw new LimitExceededException(v);
+    }
+    if (maxMillis > 0 && System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(maxMillis)) {
+      throw exceeded(MAX_TIME, maxMillis);
+    }
+  }
+
+  void addOutput(long n) throws LimitExceededException {
+    check();
+    if (maxOutputBytes > 0 && outputBytes.addAndGet(n) > maxOutputBytes) {
+      throw exceeded(MAX_OUTPUT, maxOutputBytes);
+    }
+  }
+
+  /**
+   * Fails if output that is held, to be written later, would exceed the output limit. The held
+   * output is counted when it is written.
+   */
+  void checkHeldOutput(long n) throws LimitExceededException {
+    check();
+    if (maxOutputBytes > 0 && outputBytes.get() + n > maxOutputBytes) {
+      throw exceeded(MAX_OUTPUT, maxOutputBytes);
+    }
+  }
+
+  void addInputNodes(int n) throws LimitExceededException {
+    check();
+    inputNodes += n;
+    if (maxInputNodes > 0 && inputNodes > maxInputNodes) {
+      throw exceeded(MAX_INPUT_NODES, maxInputNodes);
+    }
+  }
+
+  /** Returns a reader that counts the nodes the parent reports, and checks the limits. */
+  XMLReader filter(XMLReader parent) {
+    return new Filter(parent);
+  }
+
+  /** Returns a stream that counts the bytes written, and checks the limits. */
+  OutputStream limit(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        addOutput(1);
+        out.write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        addOutput(len);
+        out.write(b, off, len);
+      }
+    };
+  }
+
+  /** As above, for characters. Each character counts as one byte. */
+  Writer limit(Writer writer) {
+    return new FilterWriter(writer) {
+      @Override
+      public void write(int c) throws IOException {
+        addOutput(1);
+        out.write(c);
+      }
+
+      @Override
+      public void write(char[] cbuf, int off, int len) throws IOException {
+        addOutput(len);
+        out.write(cbuf, off, len);
+      }
+
+      @Override
+      public void write(String str, int off, int len) throws IOException {
+        addOutput(len);
+        out.write(str, off, len);
+      }
+    };
+  }
+
+  /** Thrown when a check fails. The engine wraps it in its own exception. */
+  static final class LimitExceededException extends IOException {
+    LimitExceededException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Counts elements, attributes, text nodes and processing instructions, as they pass to the
+   * engine. Comments go from the parser to the engine directly, and are not counted.
+   */
+  private final class Filter extends XMLFilterImpl {
+    private boolean inText;
+
+    Filter(XMLReader parent) {
+      super(parent);
+    }
+
+    private void count(int n) throws SAXException {
+      try {
+        addInputNodes(n);
+      } catch (LimitExceededException lee) {
+        throw new SAXException(lee);
+      }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts)
+        throws SAXException {
+      inText = false;
+      count(1 + atts.getLength());
+      super.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+      inText = false;
+      super.endElement(uri, localName, qName);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+      if (!inText) {
+        inText = true;
+        count(1);
+      }
+      super.characters(ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+      inText = false;
+      count(1);
+      super.processingInstruction(target, data);
+    }
+  }
+}
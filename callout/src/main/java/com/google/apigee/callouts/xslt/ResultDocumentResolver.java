@@ -0,0 +1,103 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import com.apigee.flow.message.MessageContext;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.transform.Result;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+import net.sf.saxon.Controller;
+import net.sf.saxon.lib.OutputURIResolver;
+
+/**
+ * Captures the secondary results of a Saxon transform, written with xsl:result-document and an
+ * href of the form var:name, so that each can be set into the named context variable. Other hrefs
+ * go to the resolver that the transformer had before. One instance serves one request; the
+ * results are set into the context only when the transform succeeds.
+ */
+final class ResultDocumentResolver implements OutputURIResolver {
+  static final String SCHEME = "var:";
+  private final Map<String, StringWriter> results = new LinkedHashMap<String, StringWriter>();
+  private final ResourceGovernor governor;
+  private OutputURIResolver delegate;
+
+  /** The governor, if not null, counts the results as output. */
+  ResultDocumentResolver(ResourceGovernor governor) {
+    this.governor = governor;
+  }
+
+  /** Captures the results of the transformer, which must be a Saxon Controller. */
+  void attach(Transformer transformer) {
+    attach((Controller) transformer);
+  }
+
+  void attach(Controller controller) {
+    OutputURIResolver current = controller.getOutputURIResolver();
+    if (delegate == null && !(current instanceof ResultDocumentResolver)) {
+      delegate = current;
+    }
+    controller.setOutputURIResolver(this);
+  }
+
+  /** Restores the prior resolver, before the transformer is returned to the pool. */
+  void detach(Transformer transformer) {
+    Controller controller = (Controller) transformer;
+    if (controller.getOutputURIResolver() == this) {
+      controller.setOutputURIResolver(delegate);
+    }
+  }
+
+  // The controller asks for a new instance at the start of each transform.
+  // This instance already belongs to just one request.
+  public OutputURIResolver newInstance() {
+    return this;
+  }
+
+  public Result resolve(String href, String base) throws TransformerException {
+    if (!href.startsWith(SCHEME)) {
+      if (delegate == null) {
+        throw new TransformerException("cannot write a result document to " + href);
+      }
+      return delegate.resolve(href, base);
+    }
+    String name = href.substring(SCHEME.length()).trim();
+    if (name.equals("")) {
+      throw new TransformerException("result document " + href + " names no variable");
+    }
+    StringWriter writer = new StringWriter();
+    results.put(name, writer);
+    StreamResult result = new StreamResult((governor != null) ? governor.limit(writer) : writer);
+    result.setSystemId(href);
+    return result;
+  }
+
+  public void close(Result result) throws TransformerException {
+    String systemId = result.getSystemId();
+    if ((systemId == null || !systemId.startsWith(SCHEME)) && delegate != null) {
+      delegate.close(result);
+    }
+  }
+
+  /** Sets each captured result into its context variable. */
+  void commit(MessageContext msgCtxt) {
+    for (Map.Entry<String, StringWriter> entry : results.entrySet()) {
+      msgCtxt.setVariable(entry.getKey(), entry.getValue().toString().trim());
+    }
+  }
+}
@@ -0,0 +1,222 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SAXDestination;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+
+/**
+ * Runs transforms through the native Saxon s9api, rather than through JAXP. This avoids the JAXP
+ * wrapping, and serializes directly to the output sink. The Processor shares its Configuration
+ * with the JAXP Saxon engine in the EngineRegistry.
+ */
+final class SaxonS9api {
+  // The value getEngine() returns for engine=saxon-s9api. Not a factory class name.
+  static final String ENGINE = "net.sf.saxon.s9api";
+  private static final String SAXON_FACTORY = "net.sf.saxon.TransformerFactoryImpl";
+  private static final Cache<String, CustomTransformerFactory.Compiled<XsltExecutable>>
+      executableCache;
+
+  static {
+    executableCache =
+        Caffeine.newBuilder()
+            .maximumWeight(
+                CacheBudget.maxBytes("executables", CacheBudget.DEFAULT_COMPILED_BYTES))
+            .weigher(
+                (String key, CustomTransformerFactory.Compiled<XsltExecutable> compiled) ->
+                    compiled.weight)
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .executor(Runnable::run)
+            .recordStats()
+            .removalListener(
+                (String key,
+                    CustomTransformerFactory.Compiled<XsltExecutable> compiled,
+                    RemovalCause cause) -> {
+                  if (cause.wasEvicted()) {
+                    ModuleURIResolver.forget(key);
+                  }
+                })
+            .build();
+    XsltMetrics.registerCache("executables", executableCache);
+  }
+
+  private SaxonS9api() {}
+
+  // initialized on first use, so that the Saxon classes are not needed for other engines
+  private static final class ProcessorHolder {
+    static final Processor processor =
+        new Processor(
+            ((net.sf.saxon.TransformerFactoryImpl) EngineRegistry.get(SAXON_FACTORY).getFactory())
+                .getConfiguration());
+  }
+
+  static Processor getProcessor() {
+    return ProcessorHolder.processor;
+  }
+
+  /** Returns the compiled stylesheet, compiling it only if it is not already cached. */
+  static XsltExecutable getExecutable(String xslt) throws Exception {
+    return getExecutable(xslt, null);
+  }
+
+  /** As above, using the given base URI for resolving included and imported modules. */
+  static XsltExecutable getExecutable(String xslt, String systemId) throws Exception {
+    return getExecutable(xslt, systemId, UrlResourceCache.DEFAULT_REFRESH_SECONDS);
+  }
+
+  /** As above, refreshing the modules fetched from URLs at the given interval. */
+  static XsltExecutable getExecutable(String xslt, String systemId, long refreshSeconds)
+      throws Exception {
+    return CustomTransformerFactory.getCompiled(
+        executableCache,
+        ENGINE,
+        xslt,
+        systemId,
+        refreshSeconds,
+        (xsltSource, k) -> compile(xsltSource, k, refreshSeconds));
+  }
+
+  static void invalidate(String cacheKey) {
+    executableCache.invalidate(cacheKey);
+  }
+
+  private static CustomTransformerFactory.Compiled<XsltExecutable> compile(
+      CustomTransformerFactory.XsltSource xsltSource, String cacheKey, long refreshSeconds) {
+    XsltCompiler compiler = getProcessor().newXsltCompiler();
+    // A compiler is used for just one compile, so it gets its own error listener.
+    CustomTransformerFactory.SimpleErrorListener errorListener =
+        new CustomTransformerFactory.SimpleErrorListener();
+    compiler.setErrorListener(errorListener);
+    compiler.setURIResolver(new ModuleURIResolver(compiler.getURIResolver(), ENGINE));
+    ModuleURIResolver.startTracking(cacheKey, refreshSeconds);
+    long start = System.nanoTime();
+    boolean success = false;
+    Source source = null;
+    try {
+      source = xsltSource.toSource();
+      XsltExecutable executable = compiler.compile(source);
+      success = true;
+      return new CustomTransformerFactory.Compiled<XsltExecutable>(
+          executable, xsltSource.bytes.length);
+    } catch (SaxonApiException sae) {
+      TransformerException inner =
+          (sae.getCause() instanceof TransformerException)
+              ? (TransformerException) sae.getCause()
+              : new TransformerException(sae);
+      throw new CustomTransformerFactory.CompilationFailure(
+          new TransformerCreationException(sae.getMessage(), errorListener.getXsltError(), inner));
+    } catch (Exception exc1) {
+      throw new CustomTransformerFactory.CompilationFailure(exc1);
+    } finally {
+      XMLReaderPool.release(source);
+      ModuleURIResolver.stopTracking();
+      XsltMetrics.recordCompile(System.nanoTime() - start, success);
+    }
+  }
+
+  /** Runs a transform of the synthetic input, discarding the output. */
+  static void warmup(XsltExecutable executable, String input) throws SaxonApiException {
+    XsltTransformer transformer = executable.load();
+    transformer.setErrorListener(new TransformerPool.DiscardingErrorListener());
+    transformer.setSource(new StreamSource(new StringReader(input)));
+    transformer.setDestination(getProcessor().newSerializer(Prewarmer.nullOutputStream()));
+    transformer.transform();
+  }
+
+  /** Loads a transformer for the executable, and transforms the input into the output. */
+  static void transform(
+      XsltExecutable executable,
+      Source input,
+      Map<String, Object> params,
+      ErrorListener listener,
+      TransformOutput output)
+      throws SaxonApiException {
+    transform(
+        new XsltExecutable[] {executable},
+        input,
+        Collections.singletonList(params),
+        listener,
+        output,
+        null);
+  }
+
+  /**
+   * Transforms the input through a pipeline of executables, each with its own params. Each
+   * transformer is the destination of the one before, so only the last one serializes. If
+   * documents is not null, it captures the results of xsl:result-document.
+   */
+  static void transform(
+      XsltExecutable[] executables,
+      Source input,
+      List<Map<String, Object>> params,
+      ErrorListener listener,
+      TransformOutput output,
+      ResultDocumentResolver documents)
+      throws SaxonApiException {
+    XsltTransformer[] transformers = new XsltTransformer[executables.length];
+    for (int i = 0; i < executables.length; i++) {
+      XsltTransformer transformer = executables[i].load();
+      transformer.setErrorListener(listener);
+      transformer.setURIResolver(new DataURIResolver(transformer.getURIResolver(), ENGINE));
+      if (documents != null) {
+        documents.attach(transformer.getUnderlyingController());
+      }
+      for (Map.Entry<String, Object> entry : params.get(i).entrySet()) {
+        Object value = entry.getValue();
+        transformer.setParameter(
+            new QName(entry.getKey()),
+            (value instanceof String) ? new XdmAtomicValue((String) value) : (XdmNode) value);
+      }
+      if (i > 0) {
+        transformers[i - 1].setDestination(transformer);
+      }
+      transformers[i] = transformer;
+    }
+    XsltTransformer last = transformers[transformers.length - 1];
+    if (output.isJson()) {
+      last.setDestination(new SAXDestination(output.newJsonHandler()));
+    } else {
+      String encoding = last.getUnderlyingController().getOutputProperty(OutputKeys.ENCODING);
+      Serializer serializer =
+          output.isMessage()
+              ? getProcessor().newSerializer(output.getOutputStream(encoding))
+              : getProcessor().newSerializer(output.getWriter());
+      last.setDestination(serializer);
+    }
+    transformers[0].setSource(input);
+    transformers[0].transform();
+  }
+}
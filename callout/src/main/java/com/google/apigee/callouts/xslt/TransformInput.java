@@ -0,0 +1,138 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.transform.Source;
+import javax.xml.transform.sax.SAXSource;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+/**
+ * The source for a transform. If the input variable holds a Message, the source streams the
+ * message content. Otherwise the variable must hold a string of XML. For JSON input, the source
+ * parses the JSON into the XML vocabulary of json-to-xml(), as SAX events, without building an
+ * intermediate XML document. XML is read with a parser from the XMLReaderPool; call release() when
+ * the transform has finished.
+ */
+final class TransformInput {
+  private static final Pattern charsetPattern =
+      Pattern.compile(";\\s*charset\\s*=\\s*\"?([^\";\\s]+)", Pattern.CASE_INSENSITIVE);
+  private final Source source;
+  // the parser from the pool, if any, to release
+  private final XMLReader pooled;
+  private final CountingInputStream counter;
+  private final long length;
+
+  /** The governor, if not null, counts the nodes of the input, and checks the limits. */
+  TransformInput(MessageContext msgCtxt, String variable, boolean json, ResourceGovernor governor)
+      throws Exception {
+    Object in = msgCtxt.getVariable(variable);
+    if (in == null) {
+      throw new IllegalStateException("input is not specified");
+    }
+    if (in instanceof Message) {
+      Message msg = (Message) in;
+      counter = new CountingInputStream(msg.getContentAsStream());
+      length = -1;
+      InputSource inputSource = new InputSource(counter);
+      // Use the declared charset, if any, so the parser need not sniff it.
+      String charset = getCharset(msg.getHeader("content-type"));
+      if (charset != null) {
+        inputSource.setEncoding(charset);
+      }
+      pooled = json ? null : XMLReaderPool.borrow();
+      source = newSource(json ? new JsonXMLReader() : pooled, inputSource, governor);
+    } else if (json) {
+      String s = (String) in;
+      counter = null;
+      length = s.length();
+      pooled = null;
+      source = newSource(new JsonXMLReader(), new InputSource(new StringReader(s)), governor);
+    } else {
+      // assume it resolves to an xml string
+      String s = (String) in;
+      int start = firstNonWhitespace(s);
+      if (start == s.length() || s.charAt(start) != '<') {
+        throw new IllegalStateException("input does not appear to be XML");
+      }
+      // Feed the characters directly, skipping leading whitespace, which would
+      // be illegal before an XML declaration.
+      Reader reader = new StringReader(s);
+      reader.skip(start);
+      counter = null;
+      length = s.length();
+      pooled = XMLReaderPool.borrow();
+      source = newSource(pooled, new InputSource(reader), governor);
+    }
+  }
+
+  private static Source newSource(
+      XMLReader reader, InputSource input, ResourceGovernor governor) {
+    return new SAXSource((governor != null) ? governor.filter(reader) : reader, input);
+  }
+
+  Source getSource() {
+    return source;
+  }
+
+  /** Returns the parser of the source to the pool. */
+  void release() {
+    if (pooled != null) {
+      XMLReaderPool.release(pooled);
+    }
+  }
+
+  /**
+   * The size of the input: the number of bytes read from a message, or the number of characters in
+   * a string.
+   */
+  long size() {
+    return (counter != null) ? counter.getCount() : length;
+  }
+
+  private static int firstNonWhitespace(String s) {
+    int i = 0;
+    while (i < s.length() && s.charAt(i) <= ' ') {
+      i++;
+    }
+    return i;
+  }
+
+  private static String getCharset(String contentType) {
+    if (contentType == null) {
+      return null;
+    }
+    Matcher m = charsetPattern.matcher(contentType);
+    if (m.find()) {
+      String charset = m.group(1);
+      try {
+        if (Charset.isSupported(charset)) {
+          return charset;
+        }
+      } catch (IllegalCharsetNameException e) {
+        // ignore, and let the parser detect the encoding
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,165 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.transform.Result;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamResult;
+import org.xml.sax.ContentHandler;
+
+/**
+ * The destination for the result of a transform. If the output variable names a Message, or the
+ * content of a Message, the result is serialized to bytes and set as the message content.
+ * Otherwise it is serialized to a String and set into the output variable. A message is written in
+ * the output encoding of the stylesheet, and the charset of its content type, if it has one, is
+ * set to that encoding. For JSON output, the result is received as SAX events and written as JSON,
+ * in UTF-8 for a message, whose content type is then application/json.
+ */
+final class TransformOutput {
+  private static final Pattern charsetPattern =
+      Pattern.compile(";\\s*charset\\s*=\\s*(\"[^\"]*\"|[^;\\s]*)", Pattern.CASE_INSENSITIVE);
+  private final String variable;
+  private final Message message;
+  private final boolean json;
+  private final ResourceGovernor governor;
+  private TrimmingOutputStream bytes;
+  // the encoding of the bytes
+  private String encoding;
+  private StringWriter chars;
+
+  /** The governor, if not null, limits the size of the result. */
+  TransformOutput(
+      MessageContext msgCtxt, String variable, boolean json, ResourceGovernor governor) {
+    this.variable = variable;
+    this.message = getOutputMessage(msgCtxt, variable);
+    this.json = json;
+    this.governor = governor;
+  }
+
+  // If the output variable names a Message, or the content of a Message, then
+  // return that Message.
+  private static Message getOutputMessage(MessageContext msgCtxt, String outputVariable) {
+    Object target = null;
+    if (outputVariable.endsWith(".content")) {
+      target =
+          msgCtxt.getVariable(
+              outputVariable.substring(0, outputVariable.length() - ".content".length()));
+    } else {
+      target = msgCtxt.getVariable(outputVariable);
+    }
+    return (target instanceof Message) ? (Message) target : null;
+  }
+
+  boolean isMessage() {
+    return message != null;
+  }
+
+  /**
+   * The byte sink, for use when isMessage() is true. The encoding is that of the serializer, or
+   * null for its default, UTF-8.
+   */
+  OutputStream getOutputStream(String encoding) {
+    if (bytes == null) {
+      bytes = new TrimmingOutputStream(TrimmingOutputStream.canTrim(encoding));
+      this.encoding = (encoding != null) ? encoding : "UTF-8";
+    }
+    return (governor != null) ? governor.limit(bytes) : bytes;
+  }
+
+  /** The character sink, for use when isMessage() is false. */
+  Writer getWriter() {
+    if (chars == null) {
+      chars = new StringWriter();
+    }
+    return (governor != null) ? governor.limit(chars) : chars;
+  }
+
+  boolean isJson() {
+    return json;
+  }
+
+  /**
+   * Returns a Result for a serializer that uses the given output encoding. For JSON output, the
+   * encoding of the stylesheet does not apply.
+   */
+  Result newResult(String encoding) {
+    if (json) {
+      return new SAXResult(newJsonHandler());
+    }
+    return (message != null)
+        ? new StreamResult(getOutputStream(encoding))
+        : new StreamResult(getWriter());
+  }
+
+  /** Returns a ContentHandler that writes the result events as JSON. */
+  ContentHandler newJsonHandler() {
+    Writer writer =
+        (message != null)
+            ? new OutputStreamWriter(getOutputStream("UTF-8"), StandardCharsets.UTF_8)
+            : getWriter();
+    return new JsonContentHandler(writer, governor);
+  }
+
+  /**
+   * The size of the result: the number of bytes for a message, or the number of characters for a
+   * string.
+   */
+  long size() {
+    if (message != null) {
+      return (bytes != null) ? bytes.size() : 0;
+    }
+    return (chars != null) ? chars.getBuffer().length() : 0;
+  }
+
+  /**
+   * Sets the serialized result into the message content or the output variable. For a message, sets
+   * the content type too: application/json for JSON, and otherwise the charset of the content type,
+   * if the message has one, to the encoding of the result.
+   */
+  void commit(MessageContext msgCtxt) {
+    if (message != null) {
+      message.setContent(bytes.toInputStream());
+      String contentType = json ? "application/json" : message.getHeader("Content-Type");
+      if (contentType != null) {
+        message.removeHeader("Content-Type");
+        message.setHeader(
+            "Content-Type", json ? contentType : withCharset(contentType, encoding));
+      }
+    } else {
+      msgCtxt.setVariable(variable, (chars != null) ? chars.toString().trim() : "");
+    }
+  }
+
+  /** Returns the content type with its charset parameter set to the given charset. */
+  static String withCharset(String contentType, String charset) {
+    Matcher m = charsetPattern.matcher(contentType);
+    if (m.find()) {
+      return contentType.substring(0, m.start())
+          + "; charset="
+          + charset
+          + contentType.substring(m.end());
+    }
+    return contentType + "; charset=" + charset;
+  }
+}
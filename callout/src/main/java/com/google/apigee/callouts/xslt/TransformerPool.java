@@ -0,0 +1,194 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+
+/**
+ * A keyed pool of idle Transformer instances. The key is the compiled stylesheet (Templates), so
+ * each distinct stylesheet gets its own bounded pool. Transformers are reset before being returned
+ * to the pool, so a borrowed instance carries no state from a prior request. When a stylesheet is
+ * removed from the compiled cache, its pool is discarded.
+ */
+public final class TransformerPool {
+  public static final int DEFAULT_MAX_IDLE = 16;
+  // an idle instance that has not been borrowed for this long gets trimmed
+  private static final long IDLE_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(2);
+  private static final ErrorListener idleErrorListener = new DiscardingErrorListener();
+  private static final Cache<Templates, KeyedPool> pools;
+  private static final LongAdder hits = new LongAdder();
+  private static final LongAdder misses = new LongAdder();
+  private static final LongAdder evictions = new LongAdder();
+
+  static {
+    // Weak keys compare by identity. A pooled Transformer refers to its
+    // Templates, so a key is never collected while its pool holds instances;
+    // the compiled cache discards the pool when it removes the Templates, and
+    // a pool that is not used expires.
+    pools =
+        Caffeine.newBuilder()
+            .weakKeys()
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .executor(Runnable::run)
+            .removalListener(
+                (Templates key, KeyedPool pool, RemovalCause cause) -> {
+                  if (pool != null) {
+                    evictions.add(pool.drain());
+                  }
+                })
+            .build();
+  }
+
+  private TransformerPool() {}
+
+  /** Returns an idle Transformer for the stylesheet, or a new one if none is idle. */
+  public static Transformer borrow(Templates templates, String engine) throws Exception {
+    KeyedPool pool = pools.getIfPresent(templates);
+    if (pool != null) {
+      Transformer t = pool.poll();
+      if (t != null) {
+        hits.increment();
+        return t;
+      }
+    }
+    misses.increment();
+    return CustomTransformerFactory.newTransformer(templates, engine);
+  }
+
+  /**
+   * Resets the Transformer and returns it to the pool for the stylesheet. If the pool already holds
+   * maxIdle instances, the Transformer is discarded.
+   */
+  public static void release(Templates templates, String engine, Transformer t, int maxIdle) {
+    t.reset();
+    t.clearParameters();
+    URIResolver resolver = t.getURIResolver();
+    if (!(resolver instanceof DataURIResolver)) {
+      t.setURIResolver(new DataURIResolver(resolver, engine));
+    }
+    // do not retain a reference to the listener (and the message context) from the request
+    t.setErrorListener(idleErrorListener);
+    KeyedPool pool = pools.get(templates, k -> new KeyedPool());
+    if (!pool.offer(t, maxIdle)) {
+      evictions.increment();
+    }
+  }
+
+  /** Discards the idle instances for the stylesheet, which is no longer in use. */
+  static void discard(Templates templates) {
+    pools.invalidate(templates);
+  }
+
+  public static long getHitCount() {
+    return hits.sum();
+  }
+
+  public static long getMissCount() {
+    return misses.sum();
+  }
+
+  public static long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  public static int getIdleCount() {
+    return pools.asMap().values().stream().mapToInt(KeyedPool::size).sum();
+  }
+
+  static final class KeyedPool {
+    private final ConcurrentLinkedDeque<Idle> idle = new ConcurrentLinkedDeque<Idle>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    Transformer poll() {
+      Idle entry = idle.pollFirst();
+      if (entry == null) {
+        return null;
+      }
+      size.decrementAndGet();
+      trim();
+      return entry.transformer;
+    }
+
+    boolean offer(Transformer t, int maxIdle) {
+      if (size.incrementAndGet() > maxIdle) {
+        size.decrementAndGet();
+        return false;
+      }
+      // LIFO, so that the most-recently used instances get re-used, and the
+      // least-recently used instances age out at the tail.
+      idle.offerFirst(new Idle(t));
+      return true;
+    }
+
+    int size() {
+      return size.get();
+    }
+
+    int drain() {
+      int n = 0;
+      while (idle.pollFirst() != null) {
+        size.decrementAndGet();
+        n++;
+      }
+      return n;
+    }
+
+    private void trim() {
+      long now = System.nanoTime();
+      Idle oldest;
+      while ((oldest = idle.peekLast()) != null && now - oldest.since > IDLE_TIMEOUT_NANOS) {
+        if (idle.removeLastOccurrence(oldest)) {
+          size.decrementAndGet();
+          evictions.increment();
+        }
+      }
+    }
+  }
+
+  static final class Idle {
+    final Transformer transformer;
+    final long since;
+
+    Idle(Transformer transformer) {
+      this.transformer = transformer;
+      this.since = System.nanoTime();
+    }
+  }
+
+  static final class DiscardingErrorListener implements ErrorListener {
+    public void error(TransformerException exception) {
+      /* gulp */
+    }
+
+    public void fatalError(TransformerException exception) {
+      /* gulp */
+    }
+
+    public void warning(TransformerException exception) {
+      /* gulp */
+    }
+  }
+}
@@ -0,0 +1,130 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * An in-memory sink for serialized transform output. When trimming, it drops leading whitespace
+ * and withholds trailing whitespace as the bytes arrive, which gives the same result as
+ * String.trim() for ASCII-compatible encodings like UTF-8, without copying the output. The
+ * collected bytes are exposed as an InputStream over the internal buffer, again without a copy.
+ */
+final class TrimmingOutputStream extends OutputStream {
+  private byte[] buf;
+  private int count;
+  // whitespace seen since the last non-whitespace byte; written only if more content follows
+  private int pendingWhitespace;
+  private byte[] pending = new byte[16];
+  private final boolean trim;
+  private boolean started;
+
+  TrimmingOutputStream(boolean trim) {
+    this(trim, 8192);
+  }
+
+  TrimmingOutputStream(boolean trim, int initialCapacity) {
+    this.trim = trim;
+    this.buf = new byte[initialCapacity];
+  }
+
+  /** True if byte-level trimming is equivalent to String.trim() for the named encoding. */
+  static boolean canTrim(String encoding) {
+    if (encoding == null) {
+      return true; // the default for the xml and text output methods is UTF-8
+    }
+    String e = encoding.toUpperCase();
+    return !e.startsWith("UTF-16") && !e.startsWith("UTF-32") && !e.startsWith("UCS");
+  }
+
+  @Override
+  public void write(int b) {
+    if (trim && (b & 0xFF) <= ' ') {
+      if (started) {
+        if (pendingWhitespace == pending.length) {
+          pending = Arrays.copyOf(pending, pending.length * 2);
+        }
+        pending[pendingWhitespace++] = (byte) b;
+      }
+      return;
+    }
+    flushPending();
+    ensureCapacity(count + 1);
+    buf[count++] = (byte) b;
+    started = true;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    if (!trim) {
+      append(b, off, len);
+      return;
+    }
+    int end = off + len;
+    // skip leading whitespace of the document
+    if (!started) {
+      while (off < end && (b[off] & 0xFF) <= ' ') {
+        off++;
+      }
+      if (off == end) {
+        return;
+      }
+    }
+    // withhold trailing whitespace of this chunk
+    int last = end;
+    while (last > off && (b[last - 1] & 0xFF) <= ' ') {
+      last--;
+    }
+    if (last > off) {
+      flushPending();
+      append(b, off, last - off);
+      started = true;
+    }
+    for (int i = last; i < end; i++) {
+      write(b[i]);
+    }
+  }
+
+  private void flushPending() {
+    if (pendingWhitespace > 0) {
+      append(pending, 0, pendingWhitespace);
+      pendingWhitespace = 0;
+    }
+  }
+
+  private void append(byte[] b, int off, int len) {
+    ensureCapacity(count + len);
+    System.arraycopy(b, off, buf, count, len);
+    count += len;
+  }
+
+  private void ensureCapacity(int minCapacity) {
+    if (minCapacity > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(minCapacity, buf.length * 2));
+    }
+  }
+
+  int size() {
+    return count;
+  }
+
+  /** Returns the collected output, without copying. */
+  InputStream toInputStream() {
+    return new ByteArrayInputStream(buf, 0, count);
+  }
+}
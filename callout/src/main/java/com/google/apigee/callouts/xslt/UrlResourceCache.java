@@ -0,0 +1,350 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches resources retrieved from http(s) URLs. After the first load, a request never waits on a
+ * fetch: once an entry is older than the refresh interval, the next access returns the cached
+ * content and triggers a background refresh. The refresh is a conditional GET, using the ETag and
+ * Last-Modified values from the prior response. When the content of a stylesheet changes, the new
+ * version is compiled in the background, for each engine that has used it, before the new content
+ * replaces the old in the cache. When the content of a module changes, the stylesheets that include
+ * or import it are evicted by the first access that finds the new content in the cache, and
+ * re-compiled on next use. Each use of such a stylesheet accesses its modules, so the eviction
+ * follows the refresh.
+ *
+ * <p>Fetches have connect and read timeouts. A failed first load is cached briefly, so that
+ * requests fail fast rather than each retrying a failing origin; the retry interval backs off
+ * exponentially. A failed refresh keeps the last good content. A per-host circuit breaker stops
+ * fetches to a host that keeps failing.
+ */
+final class UrlResourceCache {
+  static final long DEFAULT_REFRESH_SECONDS = 600;
+  static final int CONNECT_TIMEOUT_MS = 5000;
+  static final int READ_TIMEOUT_MS = 10000;
+  private static final long MIN_BACKOFF_MS = 5000;
+  private static final long MAX_BACKOFF_MS = TimeUnit.MINUTES.toMillis(5);
+  static final int BREAKER_FAILURE_THRESHOLD = 5;
+  static final long BREAKER_OPEN_MS = 30000;
+  private static final LoadingCache<String, UrlResource> cache;
+  private static final ConcurrentHashMap<String, CircuitBreaker> breakers =
+      new ConcurrentHashMap<String, CircuitBreaker>();
+  private static final LongAdder loads = new LongAdder();
+  private static final LongAdder loadFailures = new LongAdder();
+  private static final LongAdder refreshes = new LongAdder();
+  private static final LongAdder refreshFailures = new LongAdder();
+  private static final LongAdder notModified = new LongAdder();
+  private static final LongAdder shortCircuited = new LongAdder();
+  // the time in milliseconds, for the refresh interval, the backoff and the circuit breakers;
+  // tests replace it
+  static volatile LongSupplier clock = System::currentTimeMillis;
+
+  static {
+    cache =
+        Caffeine.newBuilder()
+            .maximumWeight(CacheBudget.maxBytes("urls", CacheBudget.DEFAULT_SOURCE_BYTES))
+            .weigher(
+                (String key, UrlResource resource) ->
+                    CacheBudget.weigh(
+                        key, (resource.content != null) ? resource.content : ""))
+            .recordStats()
+            .build(
+                new CacheLoader<String, UrlResource>() {
+                  public UrlResource load(String key) {
+                    return attempt(key, null);
+                  }
+
+                  public UrlResource reload(String key, UrlResource oldValue) {
+                    if (oldValue.isFailed()) {
+                      return attempt(key, oldValue);
+                    }
+                    refreshes.increment();
+                    try {
+                      UrlResource newValue = fetch(key, oldValue);
+                      if (newValue == oldValue) {
+                        return oldValue; // 304, not modified
+                      }
+                      newValue.engines.addAll(oldValue.engines);
+                      newValue.refreshSeconds = oldValue.refreshSeconds;
+                      precompile(key, newValue);
+                      // The stylesheets that include or import it are evicted by get(), once
+                      // the cache holds the new content, so that their re-compile cannot read
+                      // the old content.
+                      newValue.changed.set(true);
+                      return newValue;
+                    } catch (java.lang.Exception exc1) {
+                      // keep serving the last good content, and back off
+                      refreshFailures.increment();
+                      oldValue.failedRefresh();
+                      return oldValue;
+                    }
+                  }
+                });
+    XsltMetrics.registerCache("urls", cache);
+  }
+
+  private UrlResourceCache() {}
+
+  /**
+   * Returns the content at the URL, from the cache if possible. If an engine is specified, the
+   * content is a stylesheet, and will be re-compiled for that engine when it changes.
+   *
+   * @throws IllegalStateException if the content could not be retrieved
+   */
+  static String get(String url, String engine, long refreshSeconds) {
+    UrlResource resource = cache.get(url);
+    if (resource.isFailed()) {
+      // One request retries, once the backoff has elapsed. Others fail fast.
+      if (resource.isRetryDue() && resource.refreshing.compareAndSet(false, true)) {
+        resource = attempt(url, resource);
+        cache.put(url, resource);
+      }
+      if (resource.isFailed()) {
+        throw new IllegalStateException(
+            "failed to retrieve " + url + ": " + resource.failureMessage);
+      }
+    }
+    if (resource.changed.get() && resource.changed.compareAndSet(true, false)) {
+      ModuleURIResolver.moduleChanged(url);
+    }
+    if (engine != null) {
+      resource.engines.add(engine);
+      resource.refreshSeconds = refreshSeconds;
+    }
+    if (resource.isStale(TimeUnit.SECONDS.toMillis(refreshSeconds))
+        && resource.refreshing.compareAndSet(false, true)) {
+      cache.refresh(url);
+    }
+    return resource.content;
+  }
+
+  // Loads the resource, returning a failed entry rather than throwing, so
+  // that the failure is cached for the backoff period.
+  private static UrlResource attempt(String url, UrlResource priorFailure) {
+    loads.increment();
+    try {
+      return fetch(url, null);
+    } catch (java.lang.Exception exc1) {
+      loadFailures.increment();
+      int failures = (priorFailure != null) ? priorFailure.failures + 1 : 1;
+      return UrlResource.failed(exc1.toString(), failures);
+    }
+  }
+
+  private static UrlResource fetch(String url, UrlResource prior) throws IOException {
+    URL u = new URL(url);
+    CircuitBreaker breaker =
+        breakers.computeIfAbsent(
+            u.getHost(),
+            h ->
+                new CircuitBreaker(
+                    BREAKER_FAILURE_THRESHOLD, BREAKER_OPEN_MS, () -> clock.getAsLong()));
+    if (!breaker.allowRequest()) {
+      shortCircuited.increment();
+      throw new IOException("circuit open for host " + u.getHost());
+    }
+    try {
+      UrlResource resource = fetch(u, prior);
+      breaker.recordSuccess();
+      return resource;
+    } catch (IOException | RuntimeException exc1) {
+      breaker.recordFailure();
+      throw exc1;
+    }
+  }
+
+  private static UrlResource fetch(URL url, UrlResource prior) throws IOException {
+    URLConnection connection = url.openConnection();
+    connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+    connection.setReadTimeout(READ_TIMEOUT_MS);
+    if (prior != null && connection instanceof HttpURLConnection) {
+      if (prior.etag != null) {
+        connection.setRequestProperty("If-None-Match", prior.etag);
+      }
+      if (prior.lastModified != null) {
+        connection.setRequestProperty("If-Modified-Since", prior.lastModified);
+      }
+    }
+    if (connection instanceof HttpURLConnection) {
+      HttpURLConnection http = (HttpURLConnection) connection;
+      int status = http.getResponseCode();
+      if (status == HttpURLConnection.HTTP_NOT_MODIFIED && prior != null) {
+        http.disconnect();
+        notModified.increment();
+        prior.refreshed();
+        return prior;
+      }
+      if (status != HttpURLConnection.HTTP_OK) {
+        http.disconnect();
+        throw new IOException("status " + status + " fetching " + url);
+      }
+    }
+    String content;
+    try (InputStream in = connection.getInputStream()) {
+      content = readAll(in);
+    }
+    return new UrlResource(
+        content, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+  }
+
+  private static String readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8).trim();
+  }
+
+  // Compile the changed stylesheet, so that no request pays for the compile.
+  // If it does not compile, the first request to use it will report the error.
+  private static void precompile(String url, UrlResource resource) {
+    for (String engine : resource.engines) {
+      try {
+        if (engine.equals(SaxonS9api.ENGINE)) {
+          SaxonS9api.getExecutable(resource.content, url, resource.refreshSeconds);
+        } else {
+          CustomTransformerFactory.getTemplates(
+              engine, resource.content, url, resource.refreshSeconds);
+        }
+      } catch (java.lang.Exception exc1) {
+        // gulp
+      }
+    }
+  }
+
+  /**
+   * Forgets the cached resources, with any failures and their backoff, and the circuit breakers,
+   * so that each test starts from a clean state.
+   */
+  static void reset() {
+    cache.invalidateAll();
+    breakers.clear();
+  }
+
+  static long backoffMillis(int failures) {
+    long backoff = MIN_BACKOFF_MS << Math.min(failures - 1, 16);
+    return Math.min(backoff, MAX_BACKOFF_MS);
+  }
+
+  static long getLoadCount() {
+    return loads.sum();
+  }
+
+  static long getLoadFailureCount() {
+    return loadFailures.sum();
+  }
+
+  static long getRefreshCount() {
+    return refreshes.sum();
+  }
+
+  static long getRefreshFailureCount() {
+    return refreshFailures.sum();
+  }
+
+  static long getNotModifiedCount() {
+    return notModified.sum();
+  }
+
+  static long getShortCircuitCount() {
+    return shortCircuited.sum();
+  }
+
+  static int getOpenCircuitCount() {
+    return (int) breakers.values().stream().filter(CircuitBreaker::isOpen).count();
+  }
+
+  static final class UrlResource {
+    final String content;
+    final String etag;
+    final String lastModified;
+    final String failureMessage;
+    // consecutive failed attempts to load or refresh
+    final int failures;
+    // the engines for which this content has been compiled as a stylesheet
+    final Set<String> engines = ConcurrentHashMap.newKeySet();
+    final AtomicBoolean refreshing = new AtomicBoolean();
+    // true for content from a refresh, until get() has evicted the stylesheets that use it
+    final AtomicBoolean changed = new AtomicBoolean();
+    // the refresh interval of the callout that last used this stylesheet, for its modules
+    volatile long refreshSeconds = DEFAULT_REFRESH_SECONDS;
+    private volatile long fetchedAt;
+    private volatile long retryAt;
+    private volatile int refreshFailures;
+
+    UrlResource(String content, String etag, String lastModified) {
+      this(content, etag, lastModified, null, 0);
+    }
+
+    private UrlResource(
+        String content, String etag, String lastModified, String failureMessage, int failures) {
+      this.content = content;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.failureMessage = failureMessage;
+      this.failures = failures;
+      this.fetchedAt = clock.getAsLong();
+      this.retryAt = (failures > 0) ? fetchedAt + backoffMillis(failures) : 0;
+    }
+
+    static UrlResource failed(String failureMessage, int failures) {
+      return new UrlResource(null, null, null, failureMessage, failures);
+    }
+
+    boolean isFailed() {
+      return content == null;
+    }
+
+    boolean isRetryDue() {
+      return clock.getAsLong() >= retryAt;
+    }
+
+    boolean isStale(long refreshMillis) {
+      return clock.getAsLong() - fetchedAt > refreshMillis && isRetryDue();
+    }
+
+    void refreshed() {
+      fetchedAt = clock.getAsLong();
+      refreshFailures = 0;
+      retryAt = 0;
+      refreshing.set(false);
+    }
+
+    void failedRefresh() {
+      refreshFailures++;
+      retryAt = clock.getAsLong() + backoffMillis(refreshFailures);
+      refreshing.set(false);
+    }
+  }
+}
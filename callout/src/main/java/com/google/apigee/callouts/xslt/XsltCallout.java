@@ -17,9 +17,9 @@
 //
 // A callout for Apigee that performs an XSLT. This callout uses a "keyed
 // pool" of javax.xml.transform.Transformer objects to optimize the creation of
-// such objects during concurrent requests. The key is the concatenation of the
-// XSLT engine (eg, saxon, xalan), and the XSLT stylesheet name or url (eg,
-// transformResponse.xsl) .
+// such objects during concurrent requests. The key is the compiled stylesheet,
+// which is itself cached according to the XSLT engine (eg, saxon, xalan), and a
+// digest of the XSLT stylesheet content.
 //
 //
 // Example configuration
@@ -32,20 +32,73 @@
 //     <Property name='xslt'>immediate-string-containing-xslt</Property>
 //     <Property name='xslt'>{variable-containing-one-of-the-above}</Property>
 //
+//     <!-- or, a pipeline of stylesheets, run in order, with only the last result serialized -->
+//     <Property name='xslt_1'>file://strip-namespaces.xsl</Property>
+//     <Property name='xslt_2'>file://reorder.xsl</Property>
+//
 //     <!-- specify engine, default is saxon ->
 //     <Property name='engine'>saxon</Property>
 //     <Property name='engine'>xalan</Property>
+//     <Property name='engine'>saxon-s9api</Property> <!-- native Saxon API -->
 //
 //     <!-- source for the transform.  If of type Message, then use x.content -->
 //     <Property name='input'>name-of-variable-containing-message-or-string</Property>
 //
+//     <!-- or, several stylesheets applied to one input, parsed once, each to its own output -->
+//     <Property name='fanout_1_xslt'>file://audit-log.xsl</Property>
+//     <Property name='fanout_1_output'>audit_record</Property>
+//     <Property name='fanout_2_xslt'>file://routing.xsl</Property>
+//     <Property name='fanout_2_output'>route_key</Property>
+//     <Property name='fanout_2_param_x'>value for the second stylesheet only</Property>
+//
+//     <!-- optional: how many stylesheets of a fanout to run at once. Default 1, in turn -->
+//     <Property name='fanout-parallelism'>2</Property>
+//
+//     <!-- optional: xml or json. JSON is read in the vocabulary of json-to-xml(). Default xml -->
+//     <Property name='input-format'>json</Property>
+//
+//     <!-- optional: xml or json. JSON is written as the result is produced. Default xml -->
+//     <Property name='output-format'>json</Property>
+//
+//     <!-- with saxon, xsl:result-document href="var:audit" sets the variable named audit -->
+//
 //     <!-- where to put the transformed data. If none, put in message.content -->
 //     <Property name='output'>name-of-variable-to-hold-output</Property>
 //
+//     <!-- optional: seconds between background refreshes of a URL stylesheet. Default 600 -->
+//     <Property name='url-refresh-seconds'>300</Property>
+//
+//     <!-- optional: stylesheets to compile in the background when the callout loads -->
+//     <Property name='prewarm'>file://a.xsl,file://b.xsl</Property>
+//
+//     <!-- optional: max number of idle Transformers to keep per stylesheet. Default 16 -->
+//     <Property name='pool-max-idle'>32</Property>
+//
+//     <!-- optional: resource limits. The transform fails when it exceeds one. Default none -->
+//     <!-- they are checked as the transform reads and writes, so the time limit is best-effort -->
+//     <Property name='max-time-millis'>2000</Property>
+//     <Property name='max-output-bytes'>1048576</Property>
+//     <Property name='max-input-nodes'>100000</Property>
+//
+//     <!-- optional: most transforms of this stylesheet to run at once. Default none -->
+//     <Property name='max-concurrent'>8</Property>
+//     <!-- optional: with max-concurrent, the most requests to hold, and for how long -->
+//     <Property name='max-queue'>16</Property> <!-- default: max-concurrent -->
+//     <Property name='queue-timeout-millis'>500</Property> <!-- default: 1000 -->
+//
+//     <!-- optional: set a snapshot of the metrics into xslt_stats_* variables. Default false -->
+//     <Property name='stats'>true</Property>
+//
 //     <!-- arbitrary params to pass to the XSLT -->
 //     <Property name='param_x'>string value of param</Property>
 //     <Property name='param_y'>{variable-containing-value-of-param}</Property>
 //     <Property name='param_z'>file://something.xsd</Property> <!-- resource in jar -->
+//
+//     <!-- a param to pass to the XSLT as a parsed document. The parsed form is cached. -->
+//     <Property name='docparam_lookup'>file://lookup.xml</Property>
+//
+//     <!-- in a pipeline, a param for stage 2 only. It overrides param_x, for that stage -->
+//     <Property name='param_2_x'>value for stage 2</Property>
 //   </Properties>
 //   <ClassName>com.dinochiesa.xslt.XsltCallout</ClassName>
 //   <ResourceURL>java://edgecallout-xslt.jar</ResourceURL>
@@ -59,46 +112,49 @@ package com.google.apigee.callouts.xslt;
 import com.apigee.flow.execution.ExecutionContext;
 import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.spi.Execution;
-import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
 import com.github.benmanes.caffeine.cache.CacheLoader;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 import com.google.apigee.callouts.CalloutBase;
 import com.google.apigee.util.CalloutUtil;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import javax.xml.transform.Source;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.TransformerHandler;
+import net.sf.saxon.s9api.XsltExecutable;
 
 public class XsltCallout extends CalloutBase implements Execution {
   // The default cap on the number of "sleeping" instances in the pool.
   private static final String varPrefix = "xslt_";
   protected static final int MAX_CACHE_ENTRIES = 512;
+  static final String DEFAULT_ENGINE = "saxon";
   private static final String urlReferencePatternString = "^(https?://)(.+)$";
   private static final Pattern urlReferencePattern = Pattern.compile(urlReferencePatternString);
   private static final LoadingCache<String, String> fileResourceCache;
-  private static final LoadingCache<String, String> urlResourceCache;
+  private final ExecutionPlan plan;
 
   static {
     fileResourceCache =
         Caffeine.newBuilder()
-            // .concurrencyLevel(4)
-            .maximumSize(MAX_CACHE_ENTRIES)
+            .maximumWeight(CacheBudget.maxBytes("files", CacheBudget.DEFAULT_SOURCE_BYTES))
+            .weigher((String key, String content) -> CacheBudget.weigh(key, content))
             .expireAfterAccess(10, TimeUnit.MINUTES)
+            .recordStats()
             .build(
                 new CacheLoader<String, String>() {
                   public String load(String key) throws IOException {
@@ -120,88 +176,69 @@ public class XsltCallout extends CalloutBase implements Execution {
                     return s.trim();
                   }
                 });
+    XsltMetrics.registerCache("files", fileResourceCache);
 
-    urlResourceCache =
-        Caffeine.newBuilder()
-            // .concurrencyLevel(4)
-            .maximumSize(MAX_CACHE_ENTRIES)
-            .expireAfterAccess(10, TimeUnit.MINUTES)
-            .build(
-                new CacheLoader<String, String>() {
-                  public String load(String key) throws IOException {
-                    String s = "";
-                    try (BufferedReader reader =
-                        new BufferedReader(new InputStreamReader(new URL(key).openStream()))) {
-
-                      s = reader.lines().collect(Collectors.joining("\n"));
-                    } catch (java.lang.Exception exc1) {
-                      // gulp
-                    }
-                    return s.trim();
-                  }
-                });
+    // compile the stylesheets listed in the manifest, if any
+    Prewarmer.prewarm(mapEngine(DEFAULT_ENGINE), Prewarmer.readManifest());
   }
 
   public XsltCallout(Map properties) {
     super(properties);
+    plan = new ExecutionPlan(this.properties);
+    String prewarm = this.properties.get("prewarm");
+    if (prewarm != null && !prewarm.trim().equals("")) {
+      try {
+        Prewarmer.prewarm(getStaticEngine(), Prewarmer.parseList(prewarm));
+      } catch (IllegalStateException exc1) {
+        // unknown engine; execute() will report the configuration error
+      }
+    }
   }
 
   public String getVarnamePrefix() {
     return varPrefix;
   }
 
-  private String getInputProperty() {
-    String inputProp = (String) this.properties.get("input");
-    if (inputProp == null || inputProp.equals("")) {
-      return "message";
-    }
-    return inputProp;
+  private String getXsltReference(ExecutionPlan.Stage stage, MessageContext msgCtxt)
+      throws Exception {
+    String ref = stage.xsltRef;
+    return (ref != null) ? ref : getSimpleRequiredProperty(stage.property, msgCtxt).trim();
   }
 
-  private Source getTransformInput(MessageContext msgCtxt) throws IOException {
-    String inputProp = getInputProperty();
-    Source source = null;
-    Object in = msgCtxt.getVariable(inputProp);
-    if (in == null) {
-      throw new IllegalStateException("input is not specified");
-    }
-    if (in instanceof com.apigee.flow.message.Message) {
-      Message msg = (Message) in;
-      source = new StreamSource(msg.getContentAsStream());
-    } else {
-      // assume it resolves to an xml string
-      String s = (String) in;
-      s = s.trim();
-      if (!s.startsWith("<")) {
-        throw new IllegalStateException("input does not appear to be XML");
-      }
-      InputStream s2 = new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
-
-      source = new StreamSource(s2);
-    }
-    return source;
-  }
-
-  private String getXslt(MessageContext msgCtxt) throws Exception {
-    String xslt = getSimpleRequiredProperty("xslt", msgCtxt);
-    xslt = maybeResolveUrlReference(xslt.trim());
-    return xslt;
+  private String getXslt(String ref, String engine) throws Exception {
+    return maybeResolveUrlReference(ref, engine, plan.getUrlRefreshSeconds());
   }
 
   private String getEngine(MessageContext msgCtxt) throws IllegalStateException {
+    String staticEngine = plan.getEngine();
+    if (staticEngine != null) {
+      return staticEngine;
+    }
     String engine = (String) this.properties.get("engine");
     if (engine == null || engine.equals("")) {
-      engine = "saxon"; // default to saxon
+      engine = DEFAULT_ENGINE;
     }
     engine = resolvePropertyValue(engine, msgCtxt);
     if (engine == null || engine.equals("")) {
       throw new IllegalStateException("configuration error: engine resolves to null or empty.");
     }
+    return mapEngine(engine);
+  }
+
+  // The engine, for use outside of a request. If the engine property refers to
+  // a variable, this uses the default engine.
+  private String getStaticEngine() {
+    String engine = plan.getEngine();
+    return (engine != null) ? engine : mapEngine(DEFAULT_ENGINE);
+  }
 
+  static String mapEngine(String engine) throws IllegalStateException {
     if (engine.toLowerCase().equals("xalan")) {
       engine = "org.apache.xalan.processor.TransformerFactoryImpl";
     } else if (engine.toLowerCase().equals("saxon")) {
       engine = "net.sf.saxon.TransformerFactoryImpl";
+    } else if (engine.toLowerCase().equals("saxon-s9api")) {
+      engine = SaxonS9api.ENGINE;
     } else if (engine.indexOf(".") > -1) {
       // do nothing - it's apparently a classname
       // We'll try to load and use it.
@@ -224,76 +261,355 @@ public class XsltCallout extends CalloutBase implements Execution {
   }
 
   private String maybeResolveUrlReference(String ref) throws ExecutionException {
+    return maybeResolveUrlReference(ref, null, plan.getUrlRefreshSeconds());
+  }
+
+  // If the engine is not null, the reference is to a stylesheet for that engine.
+  static String maybeResolveUrlReference(String ref, String engine, long refreshSeconds)
+      throws ExecutionException {
     if (ref.startsWith("file://")) {
       return fileResourceCache.get(ref.substring(7, ref.length()));
     }
     Matcher m = urlReferencePattern.matcher(ref);
     if (m.find()) {
-      return urlResourceCache.get(ref);
+      return UrlResourceCache.get(ref, engine, refreshSeconds);
     }
     return ref;
   }
 
-  // Return all properties that begin with param_
-  // These will be passed to the XSLT as parameters.
-  private Map<String, String> paramProperties() {
-    return properties.entrySet().stream()
-        .filter(entry -> entry.getKey().startsWith("param_"))
-        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+  // Resolve the values of the parameters for a stage, keyed by parameter name.
+  // The value of a docparam_ is the parsed document, from the cache of parsed trees.
+  private Map<String, Object> resolveParams(
+      ExecutionPlan.Stage stage, MessageContext msgCtxt, String engine) throws Exception {
+    Map<String, Object> resolved = new HashMap<String, Object>();
+    for (ExecutionPlan.Param param : stage.params) {
+      String value = param.constant;
+      if (value == null) {
+        value = param.template.resolve(msgCtxt);
+        value = maybeResolveUrlReference(value);
+      }
+      if (param.document) {
+        resolved.put(param.name, ParsedDocumentCache.get(engine, value));
+      } else {
+        resolved.put(param.name, value);
+      }
+    }
+    return resolved;
+  }
+
+  // Identifies the stylesheet in the metrics. A reference to a resource or a
+  // URL identifies itself; an inline stylesheet is identified by its hash.
+  private static String getStylesheetLabel(String ref) {
+    if (ref.startsWith("file://")
+        || ref.startsWith("http://")
+        || ref.startsWith("https://")
+        || ref.endsWith(".xsl")
+        || ref.endsWith(".xslt")) {
+      return ref;
+    }
+    return "inline-" + Integer.toHexString(ref.hashCode());
+  }
+
+  private static void setParameters(Transformer transformer, Map<String, Object> params) {
+    for (Map.Entry<String, Object> entry : params.entrySet()) {
+      Object value = entry.getValue();
+      transformer.setParameter(
+          entry.getKey(),
+          (value instanceof String) ? value : ParsedDocumentCache.asParameter(value));
+    }
+  }
+
+  private static void checkErrors(CustomXsltErrorListener listener) throws Exception {
+    if (listener.getErrorCount() > 0) {
+      throw new Exception("Encountered " + listener.getErrorCount() + " errors while transforming");
+    }
+  }
+
+  // Parses the input once, and transforms the tree with each branch of the
+  // fanout, into the output of the branch. Only the request thread touches the
+  // message context. Returns the total size of the outputs.
+  private long fanout(
+      MessageContext msgCtxt,
+      String engine,
+      List<ExecutionPlan.Stage> branches,
+      String[] xslts,
+      String[] systemIds,
+      TransformInput input,
+      CustomXsltErrorListener listener,
+      ResourceGovernor governor)
+      throws Exception {
+    int n = branches.size();
+    TransformOutput[] outputs = new TransformOutput[n];
+    List<Map<String, Object>> params = new ArrayList<Map<String, Object>>(n);
+    ResultDocumentResolver[] documents = new ResultDocumentResolver[n];
+    XsltExecutable[] executables = new XsltExecutable[n];
+    Templates[] compiled = new Templates[n];
+    Transformer[] transformers = new Transformer[n];
+    boolean success = false;
+    try {
+      for (int i = 0; i < n; i++) {
+        ExecutionPlan.Stage branch = branches.get(i);
+        outputs[i] =
+            new TransformOutput(
+                msgCtxt,
+                getSimpleRequiredProperty(branch.outputProperty, msgCtxt),
+                plan.isJsonOutput(),
+                governor);
+        params.add(resolveParams(branch, msgCtxt, engine));
+        if (ParsedDocumentCache.isSaxon(engine)) {
+          documents[i] = new ResultDocumentResolver(governor);
+        }
+        if (engine.equals(SaxonS9api.ENGINE)) {
+          executables[i] =
+              SaxonS9api.getExecutable(xslts[i], systemIds[i], plan.getUrlRefreshSeconds());
+        } else {
+          compiled[i] =
+              CustomTransformerFactory.getTemplates(
+                  engine, xslts[i], systemIds[i], plan.getUrlRefreshSeconds());
+          transformers[i] = TransformerPool.borrow(compiled[i], engine);
+          transformers[i].setErrorListener(listener);
+          if (documents[i] != null) {
+            documents[i].attach(transformers[i]);
+          }
+          setParameters(transformers[i], params.get(i));
+        }
+      }
+
+      if (governor != null) {
+        governor.start();
+      }
+      Object tree = Fanout.parse(engine, input.getSource());
+      List<Fanout.Branch> tasks = new ArrayList<Fanout.Branch>(n);
+      for (int i = 0; i < n; i++) {
+        TransformOutput output = outputs[i];
+        ResultDocumentResolver resolver = documents[i];
+        if (engine.equals(SaxonS9api.ENGINE)) {
+          XsltExecutable[] executable = new XsltExecutable[] {executables[i]};
+          List<Map<String, Object>> branchParams = Collections.singletonList(params.get(i));
+          tasks.add(
+              () ->
+                  SaxonS9api.transform(
+                      executable,
+                      ParsedDocumentCache.asSource(tree),
+                      branchParams,
+                      listener,
+                      output,
+                      resolver));
+        } else {
+          Transformer transformer = transformers[i];
+          tasks.add(
+              () ->
+                  transformer.transform(
+                      ParsedDocumentCache.asSource(tree),
+                      output.newResult(transformer.getOutputProperty(OutputKeys.ENCODING))));
+        }
+      }
+      Fanout.run(tasks, plan.getFanoutParallelism());
+      if (governor != null) {
+        governor.check();
+      }
+      listener.flush();
+      checkErrors(listener);
+
+      long size = 0;
+      for (int i = 0; i < n; i++) {
+        outputs[i].commit(msgCtxt);
+        if (documents[i] != null) {
+          documents[i].commit(msgCtxt);
+        }
+        size += outputs[i].size();
+      }
+      success = true;
+      return size;
+    } finally {
+      listener.flush();
+      // return the transformers only after a clean run
+      for (int i = 0; success && i < n; i++) {
+        if (transformers[i] != null) {
+          if (documents[i] != null) {
+            documents[i].detach(transformers[i]);
+          }
+          TransformerPool.release(compiled[i], engine, transformers[i], plan.getPoolMaxIdle());
+        }
+      }
+    }
   }
 
   public ExecutionResult execute(MessageContext msgCtxt, ExecutionContext exeCtxt) {
     ExecutionResult calloutResult = ExecutionResult.ABORT;
     Boolean isValid = false;
-    String cacheKey = null;
-    boolean debug = getDebug();
+    boolean debug = plan.isDebug();
+    String xsltEngine = null;
+    Templates templates = null;
     Transformer transformer = null;
+    String metricsKey = null;
+    TransformInput input = null;
+    TransformOutput output = null;
+    long outputSize = -1;
+    // secondary results, from xsl:result-document href="var:name", for Saxon
+    ResultDocumentResolver documents = null;
+    ResourceGovernor governor = null;
+    Bulkhead bulkhead = null;
+    long start = System.nanoTime();
     try {
-      String xslt = getXslt(msgCtxt);
-      String xsltEngine = getEngine(msgCtxt);
-      cacheKey = xsltEngine + "-" + xslt;
-      transformer = CustomTransformerFactory.createTransformer(cacheKey);
-      CustomXsltErrorListener listener = new CustomXsltErrorListener(msgCtxt, debug);
-      transformer.setErrorListener(listener);
-      Source input = getTransformInput(msgCtxt);
-
-      Map<String, String> params = paramProperties();
-      // pass all specified parameters to the transform
-      for (Map.Entry<String, String> entry : params.entrySet()) {
-        String key = entry.getKey();
-        String[] parts = key.split("_");
-        // sanity check - is this a param?
-        if (parts.length == 2 && parts[0].equals("param")) {
-          String value = entry.getValue();
-          value = resolvePropertyValue(value, msgCtxt);
-          value = maybeResolveUrlReference(value);
-          String pName = parts[1];
-          transformer.setParameter(pName, value);
-        }
+      xsltEngine = getEngine(msgCtxt);
+      List<ExecutionPlan.Stage> stages = plan.getStages();
+      governor = plan.newGovernor();
+      int n = stages.size();
+      String[] xslts = new String[n];
+      String[] systemIds = new String[n];
+      StringBuilder label = new StringBuilder();
+      for (int i = 0; i < n; i++) {
+        String xsltRef = getXsltReference(stages.get(i), msgCtxt);
+        label
+            .append((i > 0) ? (plan.isFanout() ? " & " : " | ") : "")
+            .append(getStylesheetLabel(xsltRef));
+        xslts[i] = getXslt(xsltRef, xsltEngine);
+        // the base URI for modules included or imported by the stylesheet
+        systemIds[i] = ModuleURIResolver.baseUriFor(xsltRef);
+      }
+      metricsKey = xsltEngine + ":" + label;
+      if (plan.getMaxConcurrent() > 0) {
+        bulkhead =
+            Bulkhead.acquire(
+                metricsKey,
+                plan.getMaxConcurrent(),
+                plan.getMaxQueue(),
+                plan.getQueueTimeoutMillis());
       }
+      // The branches of a fanout may run on other threads, so the listener
+      // holds what it reports until they have finished.
+      CustomXsltErrorListener listener =
+          new CustomXsltErrorListener(msgCtxt, debug, plan.isFanout());
+      if (plan.isFanout()) {
+        input =
+            new TransformInput(msgCtxt, plan.getInputVariable(), plan.isJsonInput(), governor);
+        outputSize =
+            fanout(msgCtxt, xsltEngine, stages, xslts, systemIds, input, listener, governor);
+        calloutResult = ExecutionResult.SUCCESS;
+        return calloutResult;
+      }
+      String outputVar = plan.getOutputVariable();
+      output =
+          new TransformOutput(
+              msgCtxt,
+              (outputVar != null) ? outputVar : getOutputVar(msgCtxt),
+              plan.isJsonOutput(),
+              governor);
+      if (xsltEngine.equals(SaxonS9api.ENGINE)) {
+        XsltExecutable[] executables = new XsltExecutable[n];
+        for (int i = 0; i < n; i++) {
+          executables[i] =
+              SaxonS9api.getExecutable(xslts[i], systemIds[i], plan.getUrlRefreshSeconds());
+        }
+        input =
+            new TransformInput(msgCtxt, plan.getInputVariable(), plan.isJsonInput(), governor);
+        List<Map<String, Object>> params = new ArrayList<Map<String, Object>>(n);
+        for (ExecutionPlan.Stage stage : stages) {
+          params.add(resolveParams(stage, msgCtxt, xsltEngine));
+        }
+        documents = new ResultDocumentResolver(governor);
+        if (governor != null) {
+          governor.start();
+        }
+        SaxonS9api.transform(executables, input.getSource(), params, listener, output, documents);
+      } else {
+        Templates[] compiled = new Templates[n];
+        for (int i = 0; i < n; i++) {
+          compiled[i] =
+              CustomTransformerFactory.getTemplates(
+                  xsltEngine, xslts[i], systemIds[i], plan.getUrlRefreshSeconds());
+        }
+        templates = compiled[0];
+        transformer = TransformerPool.borrow(templates, xsltEngine);
+        transformer.setErrorListener(listener);
+        if (ParsedDocumentCache.isSaxon(xsltEngine)) {
+          documents = new ResultDocumentResolver(governor);
+          documents.attach(transformer);
+        }
+        input =
+            new TransformInput(msgCtxt, plan.getInputVariable(), plan.isJsonInput(), governor);
 
-      StreamResult xformOutput = new StreamResult(new java.io.StringWriter());
-      transformer.transform(input, xformOutput);
+        // pass all specified parameters to the transform
+        setParameters(transformer, resolveParams(stages.get(0), msgCtxt, xsltEngine));
 
-      if (listener.getErrorCount() > 0) {
-        throw new Exception(
-            "Encountered " + listener.getErrorCount() + " errors while transforming");
+        // In a pipeline, each later stage receives the result of the one before
+        // as SAX events, so only the last stage serializes. Build from the end.
+        TransformerHandler next = null;
+        for (int i = n - 1; i > 0; i--) {
+          TransformerHandler handler =
+              CustomTransformerFactory.newTransformerHandler(compiled[i], xsltEngine);
+          Transformer stageTransformer = handler.getTransformer();
+          stageTransformer.setErrorListener(listener);
+          if (documents != null) {
+            documents.attach(stageTransformer);
+          }
+          setParameters(stageTransformer, resolveParams(stages.get(i), msgCtxt, xsltEngine));
+          handler.setResult(
+              (next == null)
+                  ? output.newResult(stageTransformer.getOutputProperty(OutputKeys.ENCODING))
+                  : new SAXResult(next));
+          next = handler;
+        }
+        Result result =
+            (next == null)
+                ? output.newResult(transformer.getOutputProperty(OutputKeys.ENCODING))
+                : new SAXResult(next);
+        if (governor != null) {
+          governor.start();
+        }
+        transformer.transform(input.getSource(), result);
+      }
+      if (governor != null) {
+        // a transform that neither reads nor writes is checked only here
+        governor.check();
+      }
+      checkErrors(listener);
+      output.commit(msgCtxt);
+      if (documents != null) {
+        documents.commit(msgCtxt);
       }
-
-      // set the result into a context variable
-      String xformResult = xformOutput.getWriter().toString().trim();
-      String outputVariable = getOutputVar(msgCtxt);
-      msgCtxt.setVariable(outputVariable, xformResult);
       calloutResult = ExecutionResult.SUCCESS;
     } catch (Exception e) {
       if (debug) System.out.println(CalloutUtil.getStackTraceAsString(e));
       msgCtxt.setVariable(varName("exception"), e.toString());
-      msgCtxt.setVariable(varName("error"), e.getMessage());
+      // The engine wraps the failure of a limit check in its own exception.
+      String violation = (governor != null) ? governor.getViolation() : null;
+      msgCtxt.setVariable(varName("error"), (violation != null) ? violation : e.getMessage());
       if (e instanceof TransformerCreationException) {
         msgCtxt.setVariable(
             varName("additionalInformation"),
             ((TransformerCreationException) e).getAdditionalInformation());
       }
+    } catch (StackOverflowError soe) {
+      // runaway recursion in the stylesheet; the stack has unwound, so the thread can go on
+      msgCtxt.setVariable(varName("exception"), soe.toString());
+      msgCtxt.setVariable(varName("error"), ResourceGovernor.stackOverflow(governor));
+    } finally {
+      if (bulkhead != null) {
+        bulkhead.release();
+      }
+      // return the transformer only after a clean run
+      if (transformer != null && calloutResult == ExecutionResult.SUCCESS) {
+        if (documents != null) {
+          documents.detach(transformer);
+        }
+        TransformerPool.release(templates, xsltEngine, transformer, plan.getPoolMaxIdle());
+      }
+      if (input != null) {
+        input.release();
+      }
+      XsltMetrics.recordTransform(
+          metricsKey,
+          System.nanoTime() - start,
+          calloutResult == ExecutionResult.SUCCESS,
+          (input != null) ? input.size() : -1,
+          (output != null) ? output.size() : outputSize);
+      if (plan.isStatsEnabled()) {
+        for (Map.Entry<String, Object> entry : XsltMetrics.snapshot(metricsKey).entrySet()) {
+          msgCtxt.setVariable(varName("stats_" + entry.getKey()), entry.getValue());
+        }
+      }
     }
 
     return calloutResult;
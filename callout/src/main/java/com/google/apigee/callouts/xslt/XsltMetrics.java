@@ -0,0 +1,313 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide metrics for the callout: transforms and their latency for each stylesheet, compiles,
+ * the sizes of inputs and outputs, and the statistics of the caches. The metrics are exported as
+ * an MXBean, and can optionally be copied into context variables after each transform.
+ */
+public final class XsltMetrics implements XsltMetricsMXBean {
+  static final String OBJECT_NAME = "com.google.apigee.callouts.xslt:type=XsltMetrics";
+  // upper bounds of the latency histogram buckets, in milliseconds
+  private static final long[] BUCKET_BOUNDS_MILLIS = {
+    1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, Long.MAX_VALUE
+  };
+  private static final XsltMetrics instance = new XsltMetrics();
+  private static final Map<String, Cache<?, ?>> caches =
+      new ConcurrentHashMap<String, Cache<?, ?>>();
+  // the transforms stopped by each resource limit
+  private static final Map<String, LongAdder> limits = new ConcurrentHashMap<String, LongAdder>();
+  private static final Cache<String, StylesheetStats> stylesheets =
+      Caffeine.newBuilder()
+          .maximumSize(XsltCallout.MAX_CACHE_ENTRIES)
+          .expireAfterAccess(1, TimeUnit.HOURS)
+          .build();
+
+  private final LongAdder transforms = new LongAdder();
+  private final LongAdder transformErrors = new LongAdder();
+  private final LongAdder compiles = new LongAdder();
+  private final LongAdder compileErrors = new LongAdder();
+  private final LongAdder compileNanos = new LongAdder();
+  private final LongAdder inputSize = new LongAdder();
+  private final LongAdder outputSize = new LongAdder();
+  private final LongAdder limitsExceeded = new LongAdder();
+
+  static {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      // A copy of this class from an earlier deployment of the proxy may
+      // still be registered. Replace it, so that JMX reports the live
+      // counters, and the server no longer holds the old classloader.
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(instance, name);
+    } catch (java.lang.Exception exc1) {
+      // Not permitted, or another copy registered at the same moment.
+      // The metrics are still available in the context.
+    }
+  }
+
+  private XsltMetrics() {}
+
+  static XsltMetrics get() {
+    return instance;
+  }
+
+  /** Registers a cache built with recordStats(), so that its statistics get reported. */
+  static void registerCache(String name, Cache<?, ?> cache) {
+    caches.put(name, cache);
+  }
+
+  /**
+   * Records one transform. The key identifies the stylesheet; sizes are in bytes for a message,
+   * and in characters for a string. A negative size is not recorded.
+   */
+  static void recordTransform(
+      String key, long nanos, boolean success, long inputLength, long outputLength) {
+    instance.transforms.increment();
+    if (!success) {
+      instance.transformErrors.increment();
+    }
+    if (inputLength > 0) {
+      instance.inputSize.add(inputLength);
+    }
+    if (outputLength > 0) {
+      instance.outputSize.add(outputLength);
+    }
+    if (key != null) {
+      stylesheets.get(key, k -> new StylesheetStats()).record(nanos, success);
+    }
+  }
+
+  static void recordCompile(long nanos, boolean success) {
+    instance.compiles.increment();
+    instance.compileNanos.add(nanos);
+    if (!success) {
+      instance.compileErrors.increment();
+    }
+  }
+
+  /** Records a transform stopped because it exceeded the named resource limit. */
+  static void recordLimitExceeded(String limit) {
+    instance.limitsExceeded.increment();
+    limits.computeIfAbsent(limit, k -> new LongAdder()).increment();
+  }
+
+  public long getTransformCount() {
+    return transforms.sum();
+  }
+
+  public long getTransformErrorCount() {
+    return transformErrors.sum();
+  }
+
+  public long getCompileCount() {
+    return compiles.sum();
+  }
+
+  public long getCompileErrorCount() {
+    return compileErrors.sum();
+  }
+
+  public long getCompileTimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(compileNanos.sum());
+  }
+
+  public long getInputSize() {
+    return inputSize.sum();
+  }
+
+  public long getOutputSize() {
+    return outputSize.sum();
+  }
+
+  public long getLimitExceededCount() {
+    return limitsExceeded.sum();
+  }
+
+  public long getBulkheadRejectionCount() {
+    return Bulkhead.getRejectionCount();
+  }
+
+  public int getBulkheadQueueDepth() {
+    return Bulkhead.getQueueDepth();
+  }
+
+  public Map<String, Long> getLimitExceededCounts() {
+    Map<String, Long> map = new TreeMap<String, Long>();
+    for (Map.Entry<String, LongAdder> entry : limits.entrySet()) {
+      map.put(entry.getKey(), entry.getValue().sum());
+    }
+    return map;
+  }
+
+  public Map<String, Long> getCacheStatistics() {
+    Map<String, Long> map = new TreeMap<String, Long>();
+    for (Map.Entry<String, Cache<?, ?>> entry : caches.entrySet()) {
+      String name = entry.getKey();
+      CacheStats stats = entry.getValue().stats();
+      map.put(name + ".size", entry.getValue().estimatedSize());
+      map.put(name + ".hitCount", stats.hitCount());
+      map.put(name + ".missCount", stats.missCount());
+      map.put(name + ".loadSuccessCount", stats.loadSuccessCount());
+      map.put(name + ".loadFailureCount", stats.loadFailureCount());
+      map.put(name + ".loadTimeMillis", TimeUnit.NANOSECONDS.toMillis(stats.totalLoadTime()));
+      map.put(name + ".evictionCount", stats.evictionCount());
+      entry
+          .getValue()
+          .policy()
+          .eviction()
+          .ifPresent(
+              eviction -> {
+                eviction.weightedSize().ifPresent(w -> map.put(name + ".weightedSize", w));
+                map.put(name + ".maximumWeight", eviction.getMaximum());
+              });
+    }
+    map.put("pool.hitCount", TransformerPool.getHitCount());
+    map.put("pool.missCount", TransformerPool.getMissCount());
+    map.put("pool.evictionCount", TransformerPool.getEvictionCount());
+    map.put("pool.idleCount", (long) TransformerPool.getIdleCount());
+    map.put("parsers.hitCount", XMLReaderPool.getHitCount());
+    map.put("parsers.missCount", XMLReaderPool.getMissCount());
+    map.put("parsers.idleCount", (long) XMLReaderPool.getIdleCount());
+    map.put("url.loadCount", UrlResourceCache.getLoadCount());
+    map.put("url.loadFailureCount", UrlResourceCache.getLoadFailureCount());
+    map.put("url.refreshCount", UrlResourceCache.getRefreshCount());
+    map.put("url.refreshFailureCount", UrlResourceCache.getRefreshFailureCount());
+    map.put("url.notModifiedCount", UrlResourceCache.getNotModifiedCount());
+    map.put("url.shortCircuitCount", UrlResourceCache.getShortCircuitCount());
+    map.put("url.openCircuitCount", (long) UrlResourceCache.getOpenCircuitCount());
+    return map;
+  }
+
+  public Map<String, String> getStylesheetStatistics() {
+    Map<String, String> map = new TreeMap<String, String>();
+    for (Map.Entry<String, StylesheetStats> entry : stylesheets.asMap().entrySet()) {
+      map.put(entry.getKey(), entry.getValue().toString());
+    }
+    return map;
+  }
+
+  /**
+   * Returns a snapshot of the metrics, for the stylesheet with the given key, suitable for setting
+   * into context variables.
+   */
+  static Map<String, Object> snapshot(String key) {
+    Map<String, Object> map = new TreeMap<String, Object>();
+    map.put("transforms", instance.getTransformCount());
+    map.put("transform_errors", instance.getTransformErrorCount());
+    map.put("compiles", instance.getCompileCount());
+    map.put("compile_errors", instance.getCompileErrorCount());
+    map.put("compile_millis", instance.getCompileTimeMillis());
+    map.put("input_size", instance.getInputSize());
+    map.put("output_size", instance.getOutputSize());
+    map.put("limits_exceeded", instance.getLimitExceededCount());
+    map.put("bulkhead_rejections", instance.getBulkheadRejectionCount());
+    map.put("bulkhead_queue_depth", (long) instance.getBulkheadQueueDepth());
+    for (Map.Entry<String, Long> entry : instance.getCacheStatistics().entrySet()) {
+      map.put(entry.getKey().replace('.', '_'), entry.getValue());
+    }
+    StylesheetStats stats = (key != null) ? stylesheets.getIfPresent(key) : null;
+    if (stats != null) {
+      map.put("stylesheet_transforms", stats.count.sum());
+      map.put("stylesheet_errors", stats.errors.sum());
+      map.put("stylesheet_p50_millis", stats.percentileMillis(0.50));
+      map.put("stylesheet_p99_millis", stats.percentileMillis(0.99));
+      map.put("stylesheet_p999_millis", stats.percentileMillis(0.999));
+    }
+    return map;
+  }
+
+  /** Counts and a latency histogram for the transforms of one stylesheet. */
+  static final class StylesheetStats {
+    final LongAdder count = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder totalNanos = new LongAdder();
+    final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_MILLIS.length];
+
+    StylesheetStats() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void record(long nanos, boolean success) {
+      count.increment();
+      totalNanos.add(nanos);
+      if (!success) {
+        errors.increment();
+      }
+      long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+      int i = 0;
+      while (millis >= BUCKET_BOUNDS_MILLIS[i]) {
+        i++;
+      }
+      buckets[i].increment();
+    }
+
+    /**
+     * Returns the upper bound of the histogram bucket that holds the given percentile, or -1 if
+     * the percentile lies in the last, unbounded bucket.
+     */
+    long percentileMillis(double percentile) {
+      long[] counts = new long[buckets.length];
+      long total = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        counts[i] = buckets[i].sum();
+        total += counts[i];
+      }
+      if (total == 0) {
+        return 0;
+      }
+      long threshold = (long) Math.ceil(total * percentile);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= threshold) {
+          return (BUCKET_BOUNDS_MILLIS[i] == Long.MAX_VALUE) ? -1 : BUCKET_BOUNDS_MILLIS[i];
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    public String toString() {
+      long n = count.sum();
+      return String.format(
+          "count=%d errors=%d meanMillis=%.2f p50<=%d p99<=%d p999<=%d",
+          n,
+          errors.sum(),
+          (n > 0) ? totalNanos.sum() / 1e6 / n : 0.0,
+          percentileMillis(0.50),
+          percentileMillis(0.99),
+          percentileMillis(0.999));
+    }
+  }
+}
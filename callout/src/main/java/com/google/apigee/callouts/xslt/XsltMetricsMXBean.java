@@ -0,0 +1,55 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import java.util.Map;
+
+/**
+ * The management interface for the metrics of the XSLT callout. The MBean is registered with the
+ * platform MBeanServer as com.google.apigee.callouts.xslt:type=XsltMetrics.
+ */
+public interface XsltMetricsMXBean {
+  long getTransformCount();
+
+  long getTransformErrorCount();
+
+  long getCompileCount();
+
+  long getCompileErrorCount();
+
+  long getCompileTimeMillis();
+
+  long getInputSize();
+
+  long getOutputSize();
+
+  /** The number of transforms stopped because they exceeded a resource limit. */
+  long getLimitExceededCount();
+
+  /** As above, keyed by the limit, eg "max-output-bytes". */
+  Map<String, Long> getLimitExceededCounts();
+
+  /** The number of requests rejected because a stylesheet had too many transforms in flight. */
+  long getBulkheadRejectionCount();
+
+  /** The number of requests now waiting for a transform of their stylesheet to finish. */
+  int getBulkheadQueueDepth();
+
+  /** Statistics for each cache, keyed by cache name and statistic, eg "templates.hitCount". */
+  Map<String, Long> getCacheStatistics();
+
+  /** A summary of the transforms for each stylesheet, keyed by engine and stylesheet. */
+  Map<String, String> getStylesheetStatistics();
+}
@@ -0,0 +1,65 @@
+// Copyright © 2017-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.google.apigee.fakes.FakeMessage;
+import com.google.apigee.fakes.FakeMessageContext;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestPropertyTemplate {
+  private FakeMessageContext msgCtxt;
+
+  @BeforeMethod
+  public void beforeMethod() {
+    msgCtxt = new FakeMessageContext(new FakeMessage());
+    msgCtxt.setVariable("request.header.foo", "bar");
+    msgCtxt.setVariable("count", Integer.valueOf(7));
+    msgCtxt.setVariable("empty", "");
+  }
+
+  private String resolve(String spec) {
+    return PropertyTemplate.compile(spec).resolve(msgCtxt);
+  }
+
+  @Test
+  public void literalsAndVariables() {
+    Assert.assertEquals(resolve("plain"), "plain");
+    Assert.assertEquals(resolve("{request.header.foo}-x"), "bar-x");
+    Assert.assertEquals(resolve("a{request.header.foo}b{count}c"), "abarb7c");
+    Assert.assertEquals(resolve("{count}"), "7");
+    Assert.assertTrue(PropertyTemplate.compile("plain").isConstant());
+    Assert.assertFalse(PropertyTemplate.compile("{count}").isConstant());
+  }
+
+  @Test
+  public void unknownAndEmpty() {
+    Assert.assertEquals(resolve("x{unknown}y"), "xy");
+    Assert.assertNull(resolve("{unknown}"));
+    Assert.assertNull(resolve("{empty}"));
+    Assert.assertNull(resolve(""));
+  }
+
+  @Test
+  public void bracesThatAreNotReferences() {
+    Assert.assertEquals(resolve("{}"), "{}");
+    Assert.assertEquals(resolve("{not a ref}"), "{not a ref}");
+    Assert.assertEquals(resolve("a{b{count}"), "a{b7");
+    Assert.assertEquals(resolve("{{count}}"), "{7}");
+    Assert.assertEquals(resolve("trailing{"), "trailing{");
+  }
+}
@@ -0,0 +1,87 @@
+// Copyright © 2017-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.xslt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Builds synthetic SOAP payloads of a target size and depth, from the sample documents in the test
+ * data. The content of the soap:Body of the sample is repeated until the document reaches the
+ * target size, so the result is valid for the stylesheets that apply to the sample. For a greater
+ * depth, each repetition is nested within wrapper elements.
+ */
+public final class SoapPayloadGenerator {
+  public static final String TEST_DATA_DIR = "src/test/resources/test-data";
+  private static final String BODY_START = "<soap:Body>";
+  private static final String BODY_END = "</soap:Body>";
+
+  private final String head;
+  private final String body;
+  private final String tail;
+
+  public SoapPayloadGenerator(String sampleXml) {
+    int start = sampleXml.indexOf(BODY_START);
+    int end = sampleXml.indexOf(BODY_END);
+    if (start < 0 || end < start) {
+      throw new IllegalArgumentException("the sample has no soap:Body");
+    }
+    start += BODY_START.length();
+    this.head = sampleXml.substring(0, start);
+    this.body = sampleXml.substring(start, end);
+    this.tail = sampleXml.substring(end);
+  }
+
+  /** Returns a generator for one of the sample documents in the test data, by file name. */
+  public static SoapPayloadGenerator fromTestData(String fileName) throws IOException {
+    byte[] bytes = Files.readAllBytes(Paths.get(TEST_DATA_DIR, fileName));
+    return new SoapPayloadGenerator(new String(bytes, StandardCharsets.UTF_8));
+  }
+
+  public static String readTestData(String fileName) throws IOException {
+    return new String(
+        Files.readAllBytes(Paths.get(TEST_DATA_DIR, fileName)), StandardCharsets.UTF_8);
+  }
+
+  /** Returns a document of at least the target size, in characters. */
+  public String generate(int targetSize) {
+    return generate(targetSize, 0);
+  }
+
+  /**
+   * Returns a document of at least the target size, in characters, in which each repetition of the
+   * body content is nested within the given number of wrapper elements.
+   */
+  public String generate(int targetSize, int depth) {
+    StringBuilder open = new StringBuilder();
+    StringBuilder close = new StringBuilder();
+    for (int i = 0; i < depth; i++) {
+      open.append("<Level").append(i).append('>');
+      close.insert(0, "</Level" + i + ">");
+    }
+    String unit = open + body + close;
+    StringBuilder sb =
+        new StringBuilder(targetSize + head.length() + unit.length() + tail.length());
+    sb.append(head);
+    do {
+      sb.append(unit);
+    } while (sb.length() + tail.length() < targetSize);
+    sb.append(tail);
+    return sb.toString();
+  }
+}
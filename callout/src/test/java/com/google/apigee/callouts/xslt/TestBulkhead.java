@@ -0,0 +1,106 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.xslt;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestBulkhead {
+
+  private static void assertRejected(String key, int maxConcurrent, String reason) {
+    try {
+      Bulkhead.acquire(key, maxConcurrent, 0, 0).release();
+      Assert.fail("expected a rejection");
+    } catch (Bulkhead.RejectedException re) {
+      Assert.assertEquals(re.getMessage(), "rejected by the bulkhead: " + reason);
+    }
+  }
+
+  @Test
+  public void capSurvivesChurnOfOtherBulkheads() throws Exception {
+    Bulkhead held = Bulkhead.acquire("cap-churn", 1, 0, 0);
+    try {
+      // more stylesheets than a cache of bulkheads would hold
+      for (int i = 0; i < XsltCallout.MAX_CACHE_ENTRIES * 2; i++) {
+        Bulkhead.acquire("cap-churn-" + i, 1, 0, 0).release();
+      }
+      assertRejected("cap-churn", 1, "the queue is full");
+    } finally {
+      held.release();
+    }
+    Bulkhead.acquire("cap-churn", 1, 0, 0).release();
+  }
+
+  @Test
+  public void idleBulkheadIsRemoved() throws Exception {
+    int before = Bulkhead.size();
+    Bulkhead first = Bulkhead.acquire("idle", 2, 0, 0);
+    Bulkhead second = Bulkhead.acquire("idle", 2, 0, 0);
+    Assert.assertSame(second, first);
+    Assert.assertEquals(Bulkhead.size(), before + 1);
+    first.release();
+    Assert.assertEquals(Bulkhead.size(), before + 1);
+    second.release();
+    Assert.assertEquals(Bulkhead.size(), before);
+  }
+
+  @Test
+  public void rejectionTakesNoPermit() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      Bulkhead held = Bulkhead.acquire("rejection", 1, 0, 0);
+      try {
+        assertRejected("rejection", 1, "the queue is full");
+      } finally {
+        held.release();
+      }
+    }
+  }
+
+  @Test
+  public void waiterTimesOut() throws Exception {
+    Bulkhead held = Bulkhead.acquire("timeout", 1, 1, 0);
+    try {
+      try {
+        Bulkhead.acquire("timeout", 1, 1, 20).release();
+        Assert.fail("expected a rejection");
+      } catch (Bulkhead.RejectedException re) {
+        Assert.assertEquals(
+            re.getMessage(), "rejected by the bulkhead: timed out after 20ms in the queue");
+      }
+      Assert.assertEquals(Bulkhead.getQueueDepth(), 0);
+    } finally {
+      held.release();
+    }
+  }
+
+  @Test
+  public void waiterGetsReleasedPermit() throws Exception {
+    Bulkhead held = Bulkhead.acquire("handoff", 1, 1, 0);
+    Thread releaser =
+        new Thread(
+            () -> {
+              try {
+                Thread.sleep(50);
+              } catch (InterruptedException ie) {
+                // release anyway
+              }
+              held.release();
+            });
+    releaser.start();
+    Bulkhead.acquire("handoff", 1, 1, 5000).release();
+    releaser.join();
+  }
+}
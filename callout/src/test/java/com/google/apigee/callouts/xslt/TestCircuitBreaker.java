@@ -0,0 +1,103 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+
+package com.google.apigee.callouts.xslt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestCircuitBreaker {
+  private static final int THRESHOLD = 5;
+  private static final long OPEN_MILLIS = 30000L;
+
+  private final AtomicLong now = new AtomicLong(1000000L);
+  private final CircuitBreaker breaker = new CircuitBreaker(THRESHOLD, OPEN_MILLIS, now::get);
+
+  private void open() {
+    for (int i = 0; i < THRESHOLD; i++) {
+      Assert.assertTrue(breaker.allowRequest());
+      breaker.recordFailure();
+    }
+  }
+
+  @Test
+  public void opensAfterThresholdFailures() {
+    for (int i = 0; i < THRESHOLD - 1; i++) {
+      Assert.assertTrue(breaker.allowRequest());
+      breaker.recordFailure();
+    }
+    Assert.assertFalse(breaker.isOpen());
+    Assert.assertTrue(breaker.allowRequest());
+    breaker.recordFailure();
+    Assert.assertTrue(breaker.isOpen());
+  }
+
+  @Test
+  public void successResetsTheFailureCount() {
+    for (int i = 0; i < THRESHOLD - 1; i++) {
+      breaker.recordFailure();
+    }
+    breaker.recordSuccess();
+    breaker.recordFailure();
+    Assert.assertFalse(breaker.isOpen());
+    Assert.assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void shortCircuitsWhileOpen() {
+    open();
+    Assert.assertFalse(breaker.allowRequest());
+    now.addAndGet(OPEN_MILLIS - 1);
+    Assert.assertFalse(breaker.allowRequest());
+    Assert.assertTrue(breaker.isOpen());
+  }
+
+  @Test
+  public void allowsOneTrialWhenHalfOpen() {
+    open();
+    now.addAndGet(OPEN_MILLIS);
+    Assert.assertTrue(breaker.allowRequest());
+    // the trial is in flight; other requests are refused
+    Assert.assertFalse(breaker.allowRequest());
+    Assert.assertFalse(breaker.allowRequest());
+  }
+
+  @Test
+  public void closesWhenTheTrialSucceeds() {
+    open();
+    now.addAndGet(OPEN_MILLIS);
+    Assert.assertTrue(breaker.allowRequest());
+    breaker.recordSuccess();
+    Assert.assertFalse(breaker.isOpen());
+    Assert.assertTrue(breaker.allowRequest());
+    Assert.assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void reopensWhenTheTrialFails() {
+    open();
+    now.addAndGet(OPEN_MILLIS);
+    Assert.assertTrue(breaker.allowRequest());
+    breaker.recordFailure();
+    Assert.assertTrue(breaker.isOpen());
+    // open for another full period, from the failed trial
+    now.addAndGet(OPEN_MILLIS - 1);
+    Assert.assertFalse(breaker.allowRequest());
+    now.addAndGet(1);
+    Assert.assertTrue(breaker.allowRequest());
+  }
+}
@@ -0,0 +1,141 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+
+package com.google.apigee.callouts.xslt;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactoryConfigurationError;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.xml.sax.helpers.AttributesImpl;
+
+public class TestEngineRegistry {
+  private static final String ENGINE = "org.apache.xalan.processor.TransformerFactoryImpl";
+  private static final String GOOD =
+      "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+          + "<xsl:template match='/'><r/></xsl:template></xsl:stylesheet>";
+  private static final String BROKEN =
+      "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+          + "<xsl:template match='/'><xsl:value-of select='1 +'/></xsl:template>"
+          + "</xsl:stylesheet>";
+
+  private static Templates compile(String xsl) throws Exception {
+    return EngineRegistry.get(ENGINE).compile(new StreamSource(new StringReader(xsl)));
+  }
+
+  @Test
+  public void sharesOneFactoryPerEngine() {
+    EngineRegistry.Engine engine = EngineRegistry.get(ENGINE);
+    Assert.assertSame(EngineRegistry.get(ENGINE), engine);
+    Assert.assertSame(EngineRegistry.get(ENGINE).getFactory(), engine.getFactory());
+    Assert.assertTrue(engine.getFactory().getURIResolver() instanceof ModuleURIResolver);
+  }
+
+  @Test
+  public void compileErrorIsReportedWithItsDetail() throws Exception {
+    try {
+      compile(BROKEN);
+      Assert.fail("expected a compile error");
+    } catch (EngineRegistry.CompileException ce1) {
+      Assert.assertNotNull(ce1.getXsltError());
+    }
+    // the error of the failed compile does not carry over to the next
+    Assert.assertNotNull(compile(GOOD));
+  }
+
+  @Test
+  public void concurrentCompilesEachGetTheirOwnErrors() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for (int i = 0; i < 40; i++) {
+        boolean broken = (i % 2 == 0);
+        results.add(
+            executor.submit(
+                () -> {
+                  try {
+                    return compile(broken ? BROKEN : GOOD) != null && !broken;
+                  } catch (EngineRegistry.CompileException ce1) {
+                    return broken && ce1.getXsltError() != null;
+                  }
+                }));
+      }
+      for (Future<Boolean> result : results) {
+        Assert.assertTrue(result.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void handlersAreCreatedWhileOthersCompile() throws Exception {
+    Templates templates = compile(GOOD);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> results = new ArrayList<Future<String>>();
+      for (int i = 0; i < 40; i++) {
+        boolean handler = (i % 2 == 0);
+        results.add(
+            executor.submit(
+                () -> {
+                  if (!handler) {
+                    compile(GOOD);
+                    return "<r/>";
+                  }
+                  TransformerHandler h =
+                      CustomTransformerFactory.newTransformerHandler(templates, ENGINE);
+                  h.getTransformer().setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+                  StringWriter writer = new StringWriter();
+                  h.setResult(new StreamResult(writer));
+                  h.startDocument();
+                  h.startElement("", "a", "a", new AttributesImpl());
+                  h.endElement("", "a", "a");
+                  h.endDocument();
+                  return writer.toString();
+                }));
+      }
+      for (Future<String> result : results) {
+        Assert.assertEquals(result.get(), "<r/>");
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void unknownFactoryIsNotRegistered() {
+    for (int i = 0; i < 2; i++) {
+      try {
+        EngineRegistry.get("com.example.NoSuchTransformerFactory");
+        Assert.fail("expected an error");
+      } catch (TransformerFactoryConfigurationError expected) {
+        // not cached; each attempt fails the same way
+      }
+    }
+  }
+}
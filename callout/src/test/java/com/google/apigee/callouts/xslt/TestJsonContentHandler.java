@@ -0,0 +1,163 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+
+package com.google.apigee.callouts.xslt;
+
+import java.io.StringWriter;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+public class TestJsonContentHandler {
+  private final StringWriter writer = new StringWriter();
+  private final JsonContentHandler handler = new JsonContentHandler(writer);
+
+  private void startIn(String uri, String name, String... attributes) throws SAXException {
+    AttributesImpl atts = new AttributesImpl();
+    for (int i = 0; i < attributes.length; i += 2) {
+      atts.addAttribute("", attributes[i], attributes[i], "CDATA", attributes[i + 1]);
+    }
+    handler.startElement(uri, name, name, atts);
+  }
+
+  private void start(String name, String... attributes) throws SAXException {
+    startIn("", name, attributes);
+  }
+
+  private void end(String name) throws SAXException {
+    handler.endElement("", name, name);
+  }
+
+  private void text(String s) throws SAXException {
+    handler.characters(s.toCharArray(), 0, s.length());
+  }
+
+  @Test
+  public void writesTheRootNameWhenItStarts() throws Exception {
+    handler.startDocument();
+    start("order");
+    Assert.assertEquals(writer.toString(), "{\"order\":");
+    start("item");
+    text("1");
+    end("item");
+    end("order");
+    handler.endDocument();
+    Assert.assertEquals(writer.toString(), "{\"order\":{\"item\":\"1\"}}");
+  }
+
+  @Test
+  public void groupsSiblingsThatShareAName() throws Exception {
+    handler.startDocument();
+    start("r", "a", "1");
+    text("t1");
+    start("c");
+    text("1");
+    end("c");
+    start("d");
+    end("d");
+    start("c");
+    start("e");
+    text("2");
+    end("e");
+    end("c");
+    text("t2");
+    end("r");
+    handler.endDocument();
+    Assert.assertEquals(
+        writer.toString(),
+        "{\"r\":{\"@a\":\"1\",\"#text\":\"t1t2\",\"c\":[\"1\",{\"e\":\"2\"}],\"d\":null}}");
+  }
+
+  @Test
+  public void writesNestedGroupsInOrder() throws Exception {
+    handler.startDocument();
+    start("a");
+    for (int i = 0; i < 2; i++) {
+      start("b", "n", String.valueOf(i));
+      start("c");
+      text("x" + i);
+      end("c");
+      start("c");
+      end("c");
+      end("b");
+    }
+    start("d");
+    text(" mixed ");
+    start("e");
+    end("e");
+    end("d");
+    end("a");
+    handler.endDocument();
+    Assert.assertEquals(
+        writer.toString(),
+        "{\"a\":{\"b\":[{\"@n\":\"0\",\"c\":[\"x0\",null]},{\"@n\":\"1\",\"c\":[\"x1\",null]}],"
+            + "\"d\":{\"#text\":\"mixed\",\"e\":null}}}");
+  }
+
+  @Test
+  public void heldOutputIsCheckedAgainstTheLimit() throws Exception {
+    ResourceGovernor governor = new ResourceGovernor(0, 200, 0);
+    StringWriter out = new StringWriter();
+    JsonContentHandler limited = new JsonContentHandler(governor.limit(out), governor);
+    limited.startDocument();
+    limited.startElement("", "r", "r", new AttributesImpl());
+    try {
+      for (int i = 0; i < 100; i++) {
+        limited.startElement("", "item", "item", new AttributesImpl());
+        limited.characters("0123456789".toCharArray(), 0, 10);
+        limited.endElement("", "item", "item");
+      }
+      Assert.fail("expected an error");
+    } catch (SAXException exc1) {
+      Assert.assertTrue(exc1.getException() instanceof ResourceGovernor.LimitExceededException);
+      Assert.assertEquals(
+          governor.getViolation(), "resource limit exceeded: max-output-bytes=200");
+    }
+    // only the name of the root has been written
+    Assert.assertEquals(out.toString(), "{\"r\":");
+  }
+
+  @Test
+  public void moreThanOneRootIsAnError() throws Exception {
+    handler.startDocument();
+    start("r");
+    end("r");
+    try {
+      start("s");
+      Assert.fail("expected an error");
+    } catch (SAXException exc1) {
+      Assert.assertEquals(
+          exc1.getMessage(), "json output: the result has more than one top-level element");
+    }
+  }
+
+  @Test
+  public void moreThanOneFunctionsRootIsAnError() throws Exception {
+    handler.startDocument();
+    startIn(JsonXMLReader.FN_NS, "string");
+    text("a");
+    handler.endElement(JsonXMLReader.FN_NS, "string", "string");
+    Assert.assertEquals(writer.toString(), "\"a\"");
+    try {
+      startIn(JsonXMLReader.FN_NS, "map");
+      Assert.fail("expected an error");
+    } catch (SAXException exc1) {
+      Assert.assertEquals(
+          exc1.getMessage(), "json output: the result has more than one top-level element");
+    }
+  }
+}
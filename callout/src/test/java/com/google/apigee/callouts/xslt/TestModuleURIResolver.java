@@ -0,0 +1,164 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+
+package com.google.apigee.callouts.xslt;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestModuleURIResolver {
+  private static final String ENGINE = "org.apache.xalan.processor.TransformerFactoryImpl";
+  // shorter than UrlResourceCache.DEFAULT_REFRESH_SECONDS
+  private static final long REFRESH_SECONDS = 60;
+  private final UrlTestFixture fixture = new UrlTestFixture();
+
+  @BeforeMethod
+  public void setUp() {
+    fixture.setUp();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    fixture.tearDown();
+  }
+
+  private static String module(String text) {
+    return "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+        + "<xsl:template name='label'>"
+        + text
+        + "</xsl:template></xsl:stylesheet>";
+  }
+
+  private static String including(String moduleUrl) {
+    return "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+        + "<xsl:include href='"
+        + moduleUrl
+        + "'/><xsl:output omit-xml-declaration='yes'/>"
+        + "<xsl:template match='/'><r><xsl:call-template name='label'/></r></xsl:template>"
+        + "</xsl:stylesheet>";
+  }
+
+  private static Templates compile(String xslt) throws Exception {
+    return CustomTransformerFactory.getTemplates(ENGINE, xslt, null, REFRESH_SECONDS);
+  }
+
+  private static String transform(Templates templates) throws Exception {
+    Transformer transformer = templates.newTransformer();
+    StringWriter writer = new StringWriter();
+    transformer.transform(new StreamSource(new StringReader("<a/>")), new StreamResult(writer));
+    return writer.toString();
+  }
+
+  @Test
+  public void changedModuleRecompilesItsDependents() throws Exception {
+    fixture.body = module("one");
+    String xslt = including(fixture.startServer("localhost") + "/label.xsl");
+    String unrelated =
+        "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+            + "<xsl:template match='/'><unrelated/></xsl:template></xsl:stylesheet>";
+    Templates original = compile(xslt);
+    Templates other = compile(unrelated);
+    Assert.assertEquals(transform(original), "<r>one</r>");
+    Assert.assertSame(compile(xslt), original);
+
+    // The module refreshes at the interval of the callout, not the default.
+    fixture.body = module("two");
+    fixture.now.addAndGet(TimeUnit.SECONDS.toMillis(REFRESH_SECONDS) + 1);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    Templates recompiled = compile(xslt);
+    while (recompiled == original) {
+      Assert.assertTrue(System.nanoTime() < deadline, "timed out waiting for a re-compile");
+      Thread.sleep(10);
+      recompiled = compile(xslt);
+    }
+    Assert.assertEquals(transform(recompiled), "<r>two</r>");
+    Assert.assertSame(compile(unrelated), other);
+  }
+
+  @Test
+  public void recompileDuringRefreshReadsTheNewModule() throws Exception {
+    fixture.body = module("old");
+    String xslt = including(fixture.startServer("localhost") + "/racing.xsl");
+    Assert.assertEquals(transform(compile(xslt)), "<r>old</r>");
+
+    // Threads compile and transform continuously, while the module changes under them.
+    AtomicBoolean running = new AtomicBoolean(true);
+    AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    for (int i = 0; i < 4; i++) {
+      executor.execute(
+          () -> {
+            try {
+              while (running.get()) {
+                transform(compile(xslt));
+              }
+            } catch (Throwable t) {
+              failure.set(t);
+            }
+          });
+    }
+    fixture.body = module("new");
+    fixture.now.addAndGet(TimeUnit.SECONDS.toMillis(REFRESH_SECONDS) + 1);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!transform(compile(xslt)).equals("<r>new</r>")) {
+      Assert.assertTrue(System.nanoTime() < deadline, "timed out waiting for a re-compile");
+      Thread.sleep(10);
+    }
+    // the refresh runs in the common pool; let it finish before stopping the compiles
+    ForkJoinPool.commonPool().awaitQuiescence(10, TimeUnit.SECONDS);
+    running.set(false);
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    Assert.assertNull(failure.get());
+
+    // No compile that read the old module may have outlived the refresh.
+    Templates settled = compile(xslt);
+    Assert.assertEquals(transform(settled), "<r>new</r>");
+    Assert.assertSame(compile(xslt), settled);
+  }
+
+  @Test
+  public void unchangedModuleKeepsItsDependents() throws Exception {
+    fixture.body = module("same");
+    String xslt = including(fixture.startServer("localhost") + "/same.xsl");
+    Templates original = compile(xslt);
+    long notModified = UrlResourceCache.getNotModifiedCount();
+
+    fixture.now.addAndGet(TimeUnit.SECONDS.toMillis(REFRESH_SECONDS) + 1);
+    Assert.assertSame(compile(xslt), original);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (UrlResourceCache.getNotModifiedCount() == notModified) {
+      Assert.assertTrue(System.nanoTime() < deadline, "timed out waiting for a refresh");
+      Thread.sleep(10);
+    }
+    Assert.assertSame(compile(xslt), original);
+    Assert.assertEquals(transform(original), "<r>same</r>");
+  }
+}
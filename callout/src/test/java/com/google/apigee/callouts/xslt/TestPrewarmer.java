@@ -0,0 +1,97 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+
+package com.google.apigee.callouts.xslt;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.google.apigee.fakes.FakeExecutionContext;
+import com.google.apigee.fakes.FakeMessage;
+import com.google.apigee.fakes.FakeMessageContext;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestPrewarmer {
+
+  private static void await(BooleanSupplier condition) throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!condition.getAsBoolean()) {
+      Assert.assertTrue(System.nanoTime() < deadline, "timed out waiting for the prewarm");
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void parsesListsOfReferences() {
+    Assert.assertEquals(
+        Prewarmer.parseList(" file://a.xsl, file://b.xsl ,\n# file://c.xsl\n,,file://d.xsl\n"),
+        Arrays.asList("file://a.xsl", "file://b.xsl", "file://d.xsl"));
+    Assert.assertTrue(Prewarmer.parseList(" , \n").isEmpty());
+  }
+
+  @Test
+  public void firstRequestUsesThePrewarmedStylesheet() throws Exception {
+    String xsl =
+        "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+            + "<xsl:output method='text'/>"
+            + "<xsl:template match='/'>prewarmed <xsl:value-of select='name(*)'/></xsl:template>"
+            + "</xsl:stylesheet>";
+    XsltMetrics metrics = XsltMetrics.get();
+    long compiles = metrics.getCompileCount();
+    int idle = TransformerPool.getIdleCount();
+
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("engine", "xalan");
+    properties.put("prewarm", xsl);
+    properties.put("xslt", xsl);
+    properties.put("input", "inputVarname");
+    properties.put("output", "result");
+    XsltCallout callout = new XsltCallout(properties);
+
+    // compiled, and a Transformer left idle in the pool, in the background
+    await(() -> metrics.getCompileCount() > compiles && TransformerPool.getIdleCount() > idle);
+    long compiled = metrics.getCompileCount();
+    long hits = TransformerPool.getHitCount();
+
+    FakeMessageContext msgCtxt = new FakeMessageContext(new FakeMessage());
+    msgCtxt.setVariable("inputVarname", "<order/>");
+    ExecutionResult result = callout.execute(msgCtxt, new FakeExecutionContext());
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("result"), "prewarmed order");
+    Assert.assertEquals(metrics.getCompileCount(), compiled);
+    Assert.assertEquals(TransformerPool.getHitCount() - hits, 1);
+  }
+
+  @Test
+  public void unknownEngineIsReportedOnExecute() throws Exception {
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("engine", "no-such-engine");
+    properties.put("prewarm", "file://a.xsl");
+    properties.put("xslt", "file://a.xsl");
+    XsltCallout callout = new XsltCallout(properties);
+
+    FakeMessageContext msgCtxt = new FakeMessageContext(new FakeMessage());
+    ExecutionResult result = callout.execute(msgCtxt, new FakeExecutionContext());
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertEquals(
+        msgCtxt.getVariable("xslt_error"),
+        "configuration error: unknown XSLT engine: no-such-engine");
+  }
+}
@@ -0,0 +1,227 @@
+// Copyright © 2017-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.xslt;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.google.apigee.fakes.FakeExecutionContext;
+import com.google.apigee.fakes.FakeMessage;
+import com.google.apigee.fakes.FakeMessageContext;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * A soak test: many threads run a mix of stylesheets and engines concurrently, for a fixed
+ * duration, and check every output. This is in the "soak" group, which is excluded by default. To
+ * run it:
+ *
+ * <pre>
+ *   mvn -P soak test -Dsoak.threads=32 -Dsoak.seconds=120 -Dsoak.virtual=true
+ * </pre>
+ */
+public class TestSoak {
+  private static final String[] engines = {"saxon", "xalan", "saxon-s9api"};
+
+  private static int intProperty(String name, int defaultValue) {
+    String value = System.getProperty(name);
+    return (value == null || value.trim().equals(""))
+        ? defaultValue
+        : Integer.parseInt(value.trim());
+  }
+
+  /** One stylesheet, engine and payload, with the output that a single thread produces. */
+  static final class Workload {
+    final String name;
+    final XsltCallout callout;
+    final String xsl;
+    final String payload;
+    String expected;
+
+    Workload(String name, String engine, String xsl, String payload) {
+      this.name = name;
+      this.xsl = xsl;
+      this.payload = payload;
+      Map<String, String> properties = new HashMap<String, String>();
+      properties.put("engine", engine);
+      properties.put("input", "in");
+      properties.put("xslt", "{myxsl}");
+      properties.put("output", "target.content");
+      // one callout instance is shared by all threads, as in the gateway
+      this.callout = new XsltCallout(properties);
+    }
+
+    String run(FakeMessageContext msgCtxt, FakeExecutionContext exeCtxt) {
+      msgCtxt.setVariable("myxsl", xsl);
+      msgCtxt.setVariable("in", payload);
+      FakeMessage target = new FakeMessage();
+      target.setVerbose(false);
+      msgCtxt.setVariable("target", target);
+      ExecutionResult result = callout.execute(msgCtxt, exeCtxt);
+      if (result != ExecutionResult.SUCCESS) {
+        return "error: " + msgCtxt.getVariable("xslt_error");
+      }
+      return target.getContent();
+    }
+  }
+
+  private static List<Workload> buildWorkloads(int size, int depth) throws Exception {
+    SoapPayloadGenerator sample = SoapPayloadGenerator.fromTestData("Sample-Soap.xml");
+    SoapPayloadGenerator harini = SoapPayloadGenerator.fromTestData("Harini-SOAP-input.xml");
+    String reorder = SoapPayloadGenerator.readTestData("Sample-Soap-ReOrderNodes.xsl");
+    String strip = SoapPayloadGenerator.readTestData("stripNamespaces.xsl");
+    List<Workload> workloads = new ArrayList<Workload>();
+    for (String engine : engines) {
+      workloads.add(
+          new Workload("reorder-" + engine, engine, reorder, sample.generate(size, depth)));
+      workloads.add(new Workload("strip-" + engine, engine, strip, harini.generate(size, depth)));
+    }
+    return workloads;
+  }
+
+  private static Thread startThread(Runnable r, boolean virtual) throws Exception {
+    if (virtual) {
+      try {
+        // Thread.ofVirtual().start(r), on Java 21 or later
+        Method ofVirtual = Thread.class.getMethod("ofVirtual");
+        Object builder = ofVirtual.invoke(null);
+        Method start = Class.forName("java.lang.Thread$Builder").getMethod("start", Runnable.class);
+        return (Thread) start.invoke(builder, r);
+      } catch (NoSuchMethodException e) {
+        System.out.println("virtual threads are not available; using platform threads");
+      }
+    }
+    Thread t = new Thread(r);
+    t.start();
+    return t;
+  }
+
+  private static long usedHeap() {
+    Runtime rt = Runtime.getRuntime();
+    System.gc();
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  private static long percentile(long[] sorted, double p) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+  }
+
+  @Test(groups = "soak")
+  public void soak() throws Exception {
+    final int threads = intProperty("soak.threads", 16);
+    final int seconds = intProperty("soak.seconds", 30);
+    final int size = intProperty("soak.size", 16 * 1024);
+    final int depth = intProperty("soak.depth", 0);
+    final boolean virtual = Boolean.parseBoolean(System.getProperty("soak.virtual", "false"));
+
+    final List<Workload> workloads = buildWorkloads(size, depth);
+    // the reference output for each workload, from a single thread
+    FakeMessageContext refCtxt = new FakeMessageContext(new FakeMessage());
+    refCtxt.setVerbose(false);
+    for (Workload w : workloads) {
+      w.expected = w.run(refCtxt, new FakeExecutionContext());
+      Assert.assertFalse(w.expected.startsWith("error: "), w.name + " " + w.expected);
+    }
+
+    long heapBefore = usedHeap();
+    final long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+    final AtomicLong failures = new AtomicLong();
+    final long[][] latencies = new long[threads][];
+    final String[] firstFailure = new String[1];
+    List<Thread> running = new ArrayList<Thread>();
+    long start = System.nanoTime();
+    for (int t = 0; t < threads; t++) {
+      final int index = t;
+      running.add(
+          startThread(
+              () -> {
+                FakeMessageContext msgCtxt = new FakeMessageContext(new FakeMessage());
+                msgCtxt.setVerbose(false);
+                FakeExecutionContext exeCtxt = new FakeExecutionContext();
+                long[] samples = new long[1024];
+                int n = 0;
+                for (int i = index; System.nanoTime() < deadline; i++) {
+                  Workload w = workloads.get(i % workloads.size());
+                  long t0 = System.nanoTime();
+                  String output = w.run(msgCtxt, exeCtxt);
+                  long elapsed = System.nanoTime() - t0;
+                  if (!w.expected.equals(output)) {
+                    if (failures.getAndIncrement() == 0) {
+                      firstFailure[0] = w.name + ": " + output;
+                    }
+                  }
+                  if (n == samples.length) {
+                    samples = Arrays.copyOf(samples, n * 2);
+                  }
+                  samples[n++] = elapsed;
+                }
+                latencies[index] = Arrays.copyOf(samples, n);
+              },
+              virtual));
+    }
+    for (Thread t : running) {
+      t.join();
+    }
+    long wall = System.nanoTime() - start;
+    long heapAfter = usedHeap();
+
+    int total = 0;
+    for (long[] l : latencies) {
+      total += l.length;
+    }
+    long[] all = new long[total];
+    int pos = 0;
+    for (long[] l : latencies) {
+      System.arraycopy(l, 0, all, pos, l.length);
+      pos += l.length;
+    }
+    Arrays.sort(all);
+
+    System.out.printf(
+        "soak: threads=%d%s seconds=%d size=%d depth=%d workloads=%d%n",
+        threads, virtual ? " (virtual)" : "", seconds, size, depth, workloads.size());
+    System.out.printf(
+        "  requests=%d failures=%d throughput=%.1f/s%n",
+        total, failures.get(), total / (wall / 1e9));
+    System.out.printf(
+        "  latency ms: p50=%.3f p99=%.3f p999=%.3f max=%.3f%n",
+        percentile(all, 0.50) / 1e6,
+        percentile(all, 0.99) / 1e6,
+        percentile(all, 0.999) / 1e6,
+        (total > 0 ? all[total - 1] : 0) / 1e6);
+    System.out.printf(
+        "  heap MB: before=%.1f after=%.1f growth=%.1f%n",
+        heapBefore / 1048576.0, heapAfter / 1048576.0, (heapAfter - heapBefore) / 1048576.0);
+    System.out.printf(
+        "  pool: hits=%d misses=%d evictions=%d idle=%d%n",
+        TransformerPool.getHitCount(),
+        TransformerPool.getMissCount(),
+        TransformerPool.getEvictionCount(),
+        TransformerPool.getIdleCount());
+
+    Assert.assertTrue(total > 0, "no requests completed");
+    Assert.assertEquals(failures.get(), 0L, "first failure: " + firstFailure[0]);
+  }
+}
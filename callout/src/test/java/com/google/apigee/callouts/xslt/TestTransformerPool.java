@@ -0,0 +1,129 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.xslt;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestTransformerPool {
+  private static final String ENGINE = "org.apache.xalan.processor.TransformerFactoryImpl";
+  private static int serial;
+
+  // a distinct stylesheet for each test, so that each test gets its own pool
+  private static Templates newTemplates() throws Exception {
+    String xsl =
+        "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+            + "<xsl:output omit-xml-declaration='yes'/><xsl:param name='p'/>"
+            + "<xsl:template match='/'><r n='"
+            + (serial++)
+            + "'><xsl:value-of select='$p'/></r></xsl:template>"
+            + "</xsl:stylesheet>";
+    return CustomTransformerFactory.getTemplates(ENGINE, xsl);
+  }
+
+  private static String transform(Transformer t) throws Exception {
+    StringWriter writer = new StringWriter();
+    t.transform(new StreamSource(new StringReader("<a/>")), new StreamResult(writer));
+    return writer.toString();
+  }
+
+  @Test
+  public void releaseClearsParameters() throws Exception {
+    Templates templates = newTemplates();
+    Transformer t = TransformerPool.borrow(templates, ENGINE);
+    t.setParameter("p", "from-the-last-request");
+    Assert.assertTrue(transform(t).contains("from-the-last-request"));
+    TransformerPool.release(templates, ENGINE, t, 4);
+
+    Transformer again = TransformerPool.borrow(templates, ENGINE);
+    Assert.assertSame(again, t);
+    Assert.assertNull(again.getParameter("p"));
+    Assert.assertFalse(transform(again).contains("from-the-last-request"));
+  }
+
+  @Test
+  public void releaseRebindsResolverAndListener() throws Exception {
+    Templates templates = newTemplates();
+    Transformer t = TransformerPool.borrow(templates, ENGINE);
+    ErrorListener requestListener = new TransformerPool.DiscardingErrorListener();
+    t.setErrorListener(requestListener);
+    t.setURIResolver((href, base) -> null);
+    TransformerPool.release(templates, ENGINE, t, 4);
+
+    Transformer again = TransformerPool.borrow(templates, ENGINE);
+    Assert.assertSame(again, t);
+    Assert.assertNotSame(again.getErrorListener(), requestListener);
+    Assert.assertTrue(again.getURIResolver() instanceof DataURIResolver);
+  }
+
+  @Test
+  public void maxIdleBoundsThePool() throws Exception {
+    Templates templates = newTemplates();
+    long misses = TransformerPool.getMissCount();
+    Transformer[] borrowed = new Transformer[3];
+    for (int i = 0; i < borrowed.length; i++) {
+      borrowed[i] = TransformerPool.borrow(templates, ENGINE);
+    }
+    Assert.assertEquals(TransformerPool.getMissCount() - misses, 3);
+
+    long evictions = TransformerPool.getEvictionCount();
+    for (Transformer t : borrowed) {
+      TransformerPool.release(templates, ENGINE, t, 2);
+    }
+    // the third has no room, and is discarded
+    Assert.assertEquals(TransformerPool.getEvictionCount() - evictions, 1);
+
+    long hits = TransformerPool.getHitCount();
+    misses = TransformerPool.getMissCount();
+    for (int i = 0; i < borrowed.length; i++) {
+      TransformerPool.borrow(templates, ENGINE);
+    }
+    Assert.assertEquals(TransformerPool.getHitCount() - hits, 2);
+    Assert.assertEquals(TransformerPool.getMissCount() - misses, 1);
+  }
+
+  @Test
+  public void idleInstanceIsReusedLastInFirstOut() throws Exception {
+    Templates templates = newTemplates();
+    Transformer first = TransformerPool.borrow(templates, ENGINE);
+    Transformer second = TransformerPool.borrow(templates, ENGINE);
+    TransformerPool.release(templates, ENGINE, first, 4);
+    TransformerPool.release(templates, ENGINE, second, 4);
+    Assert.assertSame(TransformerPool.borrow(templates, ENGINE), second);
+    Assert.assertSame(TransformerPool.borrow(templates, ENGINE), first);
+  }
+
+  @Test
+  public void discardDropsTheIdleInstances() throws Exception {
+    Templates templates = newTemplates();
+    Transformer t = TransformerPool.borrow(templates, ENGINE);
+    TransformerPool.release(templates, ENGINE, t, 4);
+    long evictions = TransformerPool.getEvictionCount();
+    TransformerPool.discard(templates);
+    Assert.assertEquals(TransformerPool.getEvictionCount() - evictions, 1);
+
+    long misses = TransformerPool.getMissCount();
+    Assert.assertNotSame(TransformerPool.borrow(templates, ENGINE), t);
+    Assert.assertEquals(TransformerPool.getMissCount() - misses, 1);
+  }
+}
@@ -0,0 +1,175 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+
+package com.google.apigee.callouts.xslt;
+
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.Templates;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestUrlResourceCache {
+  private static final long REFRESH_SECONDS = 60;
+  private final UrlTestFixture fixture = new UrlTestFixture();
+
+  @BeforeMethod
+  public void setUp() {
+    fixture.setUp();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    fixture.tearDown();
+  }
+
+  private static String failure(String url) {
+    try {
+      UrlResourceCache.get(url, null, REFRESH_SECONDS);
+      Assert.fail("expected a failure");
+      return null;
+    } catch (IllegalStateException exc1) {
+      return exc1.getMessage();
+    }
+  }
+
+  @Test
+  public void refreshIsConditional() throws Exception {
+    fixture.etag = "\"v1\"";
+    fixture.body = "<a>v1</a>";
+    String url = fixture.startServer("localhost") + "/conditional.xsl";
+    Assert.assertEquals(UrlResourceCache.get(url, null, REFRESH_SECONDS), "<a>v1</a>");
+    Assert.assertEquals(fixture.conditions.size(), 1);
+    Assert.assertEquals(fixture.conditions.get(0), "-");
+
+    // fresh: no request
+    fixture.now.addAndGet(TimeUnit.SECONDS.toMillis(REFRESH_SECONDS));
+    Assert.assertEquals(UrlResourceCache.get(url, null, REFRESH_SECONDS), "<a>v1</a>");
+    Assert.assertEquals(fixture.conditions.size(), 1);
+
+    // stale: the content is served while it is revalidated
+    long notModified = UrlResourceCache.getNotModifiedCount();
+    fixture.now.addAndGet(1);
+    Assert.assertEquals(UrlResourceCache.get(url, null, REFRESH_SECONDS), "<a>v1</a>");
+    UrlTestFixture.await(() -> UrlResourceCache.getNotModifiedCount() > notModified);
+    Assert.assertEquals(fixture.conditions.size(), 2);
+    Assert.assertEquals(fixture.conditions.get(1), "\"v1\"");
+
+    // a 304 restarts the refresh interval
+    fixture.now.addAndGet(TimeUnit.SECONDS.toMillis(REFRESH_SECONDS));
+    Assert.assertEquals(UrlResourceCache.get(url, null, REFRESH_SECONDS), "<a>v1</a>");
+    Assert.assertEquals(fixture.conditions.size(), 2);
+  }
+
+  @Test
+  public void refreshPicksUpChangedContent() throws Exception {
+    fixture.etag = "\"v1\"";
+    fixture.body = "<a>v1</a>";
+    String url = fixture.startServer("localhost") + "/changed.xsl";
+    Assert.assertEquals(UrlResourceCache.get(url, null, REFRESH_SECONDS), "<a>v1</a>");
+
+    fixture.etag = "\"v2\"";
+    fixture.body = "<a>v2</a>";
+    fixture.now.addAndGet(TimeUnit.SECONDS.toMillis(REFRESH_SECONDS) + 1);
+    Assert.assertEquals(UrlResourceCache.get(url, null, REFRESH_SECONDS), "<a>v1</a>");
+    UrlTestFixture.await(
+        () -> UrlResourceCache.get(url, null, REFRESH_SECONDS).equals("<a>v2</a>"));
+    Assert.assertEquals(fixture.conditions.get(1), "\"v1\"");
+  }
+
+  @Test
+  public void failureIsRetriedAfterBackoff() throws Exception {
+    String url = "http://localhost:" + UrlTestFixture.closedPort() + "/backoff.xsl";
+    long loads = UrlResourceCache.getLoadCount();
+    String message = failure(url);
+    Assert.assertTrue(message.startsWith("failed to retrieve " + url), message);
+    Assert.assertEquals(UrlResourceCache.getLoadCount() - loads, 1);
+
+    // within the backoff, the cached failure is reported without a fetch
+    fixture.now.addAndGet(UrlResourceCache.backoffMillis(1) - 1);
+    failure(url);
+    Assert.assertEquals(UrlResourceCache.getLoadCount() - loads, 1);
+
+    fixture.now.addAndGet(1);
+    failure(url);
+    Assert.assertEquals(UrlResourceCache.getLoadCount() - loads, 2);
+
+    // the backoff doubles
+    fixture.now.addAndGet(UrlResourceCache.backoffMillis(1));
+    failure(url);
+    Assert.assertEquals(UrlResourceCache.getLoadCount() - loads, 2);
+    Assert.assertEquals(UrlResourceCache.backoffMillis(2), 2 * UrlResourceCache.backoffMillis(1));
+    fixture.now.addAndGet(UrlResourceCache.backoffMillis(1));
+    failure(url);
+    Assert.assertEquals(UrlResourceCache.getLoadCount() - loads, 3);
+  }
+
+  @Test
+  public void circuitOpensForTheHostAndRecovers() throws Exception {
+    int port = UrlTestFixture.closedPort();
+    for (int i = 0; i < UrlResourceCache.BREAKER_FAILURE_THRESHOLD; i++) {
+      String message = failure("http://localhost:" + port + "/circuit-" + i + ".xsl");
+      Assert.assertFalse(message.contains("circuit open"), message);
+    }
+    long shortCircuits = UrlResourceCache.getShortCircuitCount();
+    Assert.assertEquals(UrlResourceCache.getOpenCircuitCount(), 1);
+
+    // while open, requests to any URL on the host fail without a connection
+    fixture.etag = "\"v1\"";
+    fixture.body = "<a>v1</a>";
+    String base = fixture.startServer("localhost");
+    String message = failure(base + "/circuit-open.xsl");
+    Assert.assertTrue(message.contains("circuit open for host localhost"), message);
+    Assert.assertEquals(UrlResourceCache.getShortCircuitCount() - shortCircuits, 1);
+    Assert.assertEquals(fixture.conditions.size(), 0);
+
+    // after the open period, a trial request goes through and closes the circuit
+    fixture.now.addAndGet(UrlResourceCache.BREAKER_OPEN_MS);
+    Assert.assertEquals(
+        UrlResourceCache.get(base + "/circuit-closed.xsl", null, REFRESH_SECONDS), "<a>v1</a>");
+    Assert.assertEquals(fixture.conditions.size(), 1);
+    Assert.assertEquals(
+        UrlResourceCache.get(base + "/circuit-closed-2.xsl", null, REFRESH_SECONDS), "<a>v1</a>");
+    Assert.assertEquals(UrlResourceCache.getShortCircuitCount() - shortCircuits, 1);
+  }
+
+  @Test
+  public void stylesheetUrlIsFetchedThroughTheCache() throws Exception {
+    String engine = "org.apache.xalan.processor.TransformerFactoryImpl";
+    fixture.etag = "\"v1\"";
+    fixture.body =
+        "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+            + "<xsl:template match='/'><fetched/></xsl:template></xsl:stylesheet>";
+    String url = fixture.startServer("localhost") + "/templates.xsl";
+    Templates templates = CustomTransformerFactory.getTemplates(engine, url);
+    Assert.assertSame(CustomTransformerFactory.getTemplates(engine, url), templates);
+    Assert.assertEquals(fixture.conditions.size(), 1);
+
+    // a failed fetch is cached, and reported without another fetch
+    String failing = "http://localhost:" + UrlTestFixture.closedPort() + "/templates.xsl";
+    long loads = UrlResourceCache.getLoadCount();
+    for (int i = 0; i < 2; i++) {
+      try {
+        CustomTransformerFactory.getTemplates(engine, failing);
+        Assert.fail("expected a failure");
+      } catch (IllegalStateException exc1) {
+        Assert.assertTrue(exc1.getMessage().startsWith("failed to retrieve " + failing));
+      }
+    }
+    Assert.assertEquals(UrlResourceCache.getLoadCount() - loads, 1);
+  }
+}
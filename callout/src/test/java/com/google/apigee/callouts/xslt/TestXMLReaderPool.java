@@ -0,0 +1,136 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+
+package com.google.apigee.callouts.xslt;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import javax.xml.transform.sax.SAXSource;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+public class TestXMLReaderPool {
+
+  // collects the text of the document
+  private static final class TextHandler extends DefaultHandler {
+    final StringBuilder text = new StringBuilder();
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+      text.append(ch, start, length);
+    }
+  }
+
+  private static String parse(String xml) throws Exception {
+    XMLReader reader = XMLReaderPool.borrow();
+    try {
+      TextHandler handler = new TextHandler();
+      reader.setContentHandler(handler);
+      reader.parse(new InputSource(new StringReader(xml)));
+      return handler.text.toString();
+    } finally {
+      XMLReaderPool.release(reader);
+    }
+  }
+
+  @Test
+  public void releasedParserIsReused() throws Exception {
+    XMLReader reader = XMLReaderPool.borrow();
+    XMLReaderPool.release(reader);
+    long hits = XMLReaderPool.getHitCount();
+    Assert.assertSame(XMLReaderPool.borrow(), reader);
+    Assert.assertEquals(XMLReaderPool.getHitCount() - hits, 1);
+    XMLReaderPool.release(reader);
+  }
+
+  @Test
+  public void releaseDropsTheHandlersOfTheRequest() throws Exception {
+    XMLReader reader = XMLReaderPool.borrow();
+    TextHandler handler = new TextHandler();
+    reader.setContentHandler(handler);
+    reader.setErrorHandler(handler);
+    reader.setEntityResolver((publicId, systemId) -> null);
+    reader.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
+    XMLReaderPool.release(reader);
+
+    Assert.assertSame(XMLReaderPool.borrow(), reader);
+    Assert.assertNotSame(reader.getContentHandler(), handler);
+    Assert.assertNotSame(reader.getErrorHandler(), handler);
+    Assert.assertSame(reader.getEntityResolver(), XMLReaderPool.noExternalEntities);
+    Assert.assertTrue(reader.getFeature("http://xml.org/sax/features/namespaces"));
+    Assert.assertFalse(reader.getFeature("http://xml.org/sax/features/namespace-prefixes"));
+    XMLReaderPool.release(reader);
+  }
+
+  @Test
+  public void sourceParserIsReturnedOnRelease() throws Exception {
+    SAXSource source = XMLReaderPool.newSource(new InputSource(new StringReader("<a/>")));
+    XMLReader reader = source.getXMLReader();
+    XMLReaderPool.release(source);
+    Assert.assertNull(source.getXMLReader());
+    Assert.assertSame(XMLReaderPool.borrow(), reader);
+    XMLReaderPool.release(reader);
+
+    // a JSON reader is not pooled
+    int idle = XMLReaderPool.getIdleCount();
+    XMLReaderPool.release(new SAXSource(new JsonXMLReader(), new InputSource()));
+    Assert.assertEquals(XMLReaderPool.getIdleCount(), idle);
+  }
+
+  @Test
+  public void externalEntityIsNotRead() throws Exception {
+    File secret = File.createTempFile("secret", ".txt");
+    try {
+      Files.write(secret.toPath(), "the-secret".getBytes(StandardCharsets.UTF_8));
+      String xml =
+          "<!DOCTYPE a [<!ENTITY secret SYSTEM '"
+              + secret.toURI()
+              + "'>]><a>before &secret; after</a>";
+      String text = parse(xml);
+      Assert.assertFalse(text.contains("the-secret"), text);
+      Assert.assertTrue(text.startsWith("before"), text);
+    } finally {
+      secret.delete();
+    }
+  }
+
+  @Test
+  public void entityExpansionIsLimited() throws Exception {
+    StringBuilder xml = new StringBuilder("<!DOCTYPE a [<!ENTITY e0 'lol'>");
+    for (int i = 1; i < 10; i++) {
+      xml.append("<!ENTITY e").append(i).append(" '");
+      for (int j = 0; j < 10; j++) {
+        xml.append("&e").append(i - 1).append(';');
+      }
+      xml.append("'>");
+    }
+    xml.append("]><a>&e9;</a>");
+    try {
+      parse(xml.toString());
+      Assert.fail("expected the expansion to be refused");
+    } catch (SAXParseException expected) {
+      // the limit applies to the pooled parser
+    }
+    // the parser is still usable
+    Assert.assertEquals(parse("<a>ok</a>"), "ok");
+  }
+}
@@ -0,0 +1,107 @@
+// Copyright 2015-2024 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+
+package com.google.apigee.callouts.xslt;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+import org.testng.Assert;
+
+/**
+ * The fixture for tests of resources fetched from URLs: a clock that the test advances, in place of
+ * the clock of UrlResourceCache, and an HTTP server on the loopback interface. The server returns
+ * the body with its ETag, or 304 for a request with a matching If-None-Match. setUp() also resets
+ * the URL cache and its circuit breakers, so that the failures of one test do not affect another.
+ */
+final class UrlTestFixture {
+  final AtomicLong now = new AtomicLong();
+  // the If-None-Match header of each request, or "-" if none
+  final List<String> conditions = new CopyOnWriteArrayList<String>();
+  volatile String body;
+  // if null, derived from the body
+  volatile String etag;
+  private LongSupplier systemClock;
+  private HttpServer server;
+
+  void setUp() {
+    systemClock = UrlResourceCache.clock;
+    now.set(System.currentTimeMillis());
+    UrlResourceCache.clock = now::get;
+    UrlResourceCache.reset();
+  }
+
+  void tearDown() {
+    UrlResourceCache.clock = systemClock;
+    if (server != null) {
+      server.stop(0);
+    }
+  }
+
+  /** Starts the server, and returns its base URL, with the given host name. */
+  String startServer(String host) throws Exception {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext(
+        "/",
+        exchange -> {
+          String content = body;
+          String tag = etag;
+          if (tag == null) {
+            tag = "\"" + Integer.toHexString(content.hashCode()) + "\"";
+          }
+          String condition = exchange.getRequestHeaders().getFirst("If-None-Match");
+          conditions.add((condition != null) ? condition : "-");
+          if (tag.equals(condition)) {
+            exchange.sendResponseHeaders(304, -1);
+          } else {
+            byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("ETag", tag);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+              out.write(bytes);
+            }
+          }
+          exchange.close();
+        });
+    server.start();
+    return "http://" + host + ":" + server.getAddress().getPort();
+  }
+
+  /** A port on which nothing listens. */
+  static int closedPort() throws Exception {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  /** Waits for a condition that a background refresh makes true. */
+  static void await(BooleanSupplier condition) throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (!condition.getAsBoolean()) {
+      Assert.assertTrue(System.nanoTime() < deadline, "timed out waiting for a refresh");
+      Thread.sleep(10);
+    }
+  }
+}
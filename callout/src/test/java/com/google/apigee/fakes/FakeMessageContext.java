@@ -27,6 +27,7 @@ import java.util.Map;
 public class FakeMessageContext implements MessageContext {
   private Map<String, Object> variables;
   private Message message;
+  private boolean verbose = true;
 
   // public FakeMessageContext() {
   //   getVariables();
@@ -37,6 +38,14 @@ public class FakeMessageContext implements MessageContext {
     getVariables();
   }
 
+  public void setVerbose(boolean v) {
+    this.verbose = v;
+  }
+
+  public boolean isVerbose() {
+    return this.verbose;
+  }
+
   private Map<String, Object> getVariables() {
     if (variables == null) {
       variables = new HashMap<String, Object>();
@@ -53,7 +62,9 @@ public class FakeMessageContext implements MessageContext {
   }
 
   public boolean setVariable(final String name, final Object value) {
-    System.out.printf("set(%s) = %s\n", name, value.toString());
+    if (verbose) {
+      System.out.printf("set(%s) = %s\n", name, value.toString());
+    }
     getVariables().put(name, value);
     return true;
   }
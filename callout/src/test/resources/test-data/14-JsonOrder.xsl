@@ -0,0 +1,22 @@
+<xsl:stylesheet version="1.0"
+                xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+                xmlns:fn="http://www.w3.org/2005/xpath-functions"
+                exclude-result-prefixes="fn">
+
+  <xsl:output method="xml" indent="yes" omit-xml-declaration="yes"/>
+
+  <!-- the input is JSON, in the vocabulary of json-to-xml() -->
+  <xsl:template match="/fn:map">
+    <Order id="{fn:string[@key='orderId']}">
+      <Customer vip="{fn:map[@key='customer']/fn:boolean[@key='vip']}">
+        <xsl:value-of select="fn:map[@key='customer']/fn:string[@key='name']"/>
+      </Customer>
+      <xsl:for-each select="fn:array[@key='items']/fn:map">
+        <Item sku="{fn:string[@key='sku']}" quantity="{fn:number[@key='qty']}">
+          <xsl:value-of select="fn:number[@key='price']"/>
+        </Item>
+      </xsl:for-each>
+    </Order>
+  </xsl:template>
+
+</xsl:stylesheet>
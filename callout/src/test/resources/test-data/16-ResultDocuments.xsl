@@ -0,0 +1,17 @@
+<xsl:stylesheet version="2.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+
+  <xsl:output method="xml" omit-xml-declaration="yes"/>
+  <xsl:output name="text" method="text"/>
+
+  <!-- one pass produces the body, a header value, and an audit record -->
+  <xsl:template match="/">
+    <xsl:result-document href="var:order_header" format="text">
+      <xsl:value-of select="count(//*)"/>
+    </xsl:result-document>
+    <xsl:result-document href="var:order_audit">
+      <audit root="{name(/*)}"/>
+    </xsl:result-document>
+    <body><xsl:copy-of select="/*"/></body>
+  </xsl:template>
+
+</xsl:stylesheet>
@@ -0,0 +1,41 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<!-- Computes for a while before it writes anything: a sum, by divide and conquer. -->
+<xsl:stylesheet version="1.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+  <xsl:output method="xml" omit-xml-declaration="yes"/>
+
+  <xsl:template match="/">
+    <xsl:variable name="sum">
+      <xsl:call-template name="sum">
+        <xsl:with-param name="from" select="1"/>
+        <xsl:with-param name="to" select="200000"/>
+      </xsl:call-template>
+    </xsl:variable>
+    <sum><xsl:value-of select="$sum"/></sum>
+  </xsl:template>
+
+  <xsl:template name="sum">
+    <xsl:param name="from"/>
+    <xsl:param name="to"/>
+    <xsl:choose>
+      <xsl:when test="$from = $to">
+        <xsl:value-of select="$from"/>
+      </xsl:when>
+      <xsl:otherwise>
+        <xsl:variable name="mid" select="floor(($from + $to) div 2)"/>
+        <xsl:variable name="left">
+          <xsl:call-template name="sum">
+            <xsl:with-param name="from" select="$from"/>
+            <xsl:with-param name="to" select="$mid"/>
+          </xsl:call-template>
+        </xsl:variable>
+        <xsl:variable name="right">
+          <xsl:call-template name="sum">
+            <xsl:with-param name="from" select="$mid + 1"/>
+            <xsl:with-param name="to" select="$to"/>
+          </xsl:call-template>
+        </xsl:variable>
+        <xsl:value-of select="$left + $right"/>
+      </xsl:otherwise>
+    </xsl:choose>
+  </xsl:template>
+</xsl:stylesheet>
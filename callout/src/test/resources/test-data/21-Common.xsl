@@ -0,0 +1,11 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<xsl:stylesheet version="1.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+  <!-- This resolves against the location of this module. -->
+  <xsl:include href="21-Labels.xsl"/>
+
+  <xsl:template match="item">
+    <line sku="{@sku}">
+      <xsl:call-template name="label"/>
+    </line>
+  </xsl:template>
+</xsl:stylesheet>
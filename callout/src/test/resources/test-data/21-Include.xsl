@@ -0,0 +1,12 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<xsl:stylesheet version="1.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+  <!-- The stylesheet is passed inline, so this resolves against the root of the resources. -->
+  <xsl:import href="test-data/21-Common.xsl"/>
+  <xsl:output method="xml" omit-xml-declaration="yes"/>
+
+  <xsl:template match="/order">
+    <summary>
+      <xsl:apply-templates select="item"/>
+    </summary>
+  </xsl:template>
+</xsl:stylesheet>
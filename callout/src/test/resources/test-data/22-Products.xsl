@@ -0,0 +1,17 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<xsl:stylesheet version="1.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+  <!-- a parsed document, from a docparam_ property -->
+  <xsl:param name="products"/>
+  <xsl:output method="xml" omit-xml-declaration="yes"/>
+
+  <xsl:template match="/order">
+    <labels>
+      <xsl:for-each select="item">
+        <xsl:variable name="sku" select="@sku"/>
+        <label sku="{$sku}">
+          <xsl:value-of select="$products/products/product[@sku = $sku]"/>
+        </label>
+      </xsl:for-each>
+    </labels>
+  </xsl:template>
+</xsl:stylesheet>